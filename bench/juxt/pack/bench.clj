@@ -0,0 +1,28 @@
+(ns juxt.pack.bench
+  "Runs the benchmarks in benchmarks.edn with jmh-clojure.
+
+    clojure -X:bench
+    clojure -X:bench :select '[:copy-nio :copy-stream]' :type :default"
+  (:require
+    [clojure.edn :as edn]
+    [clojure.java.io :as io]
+    [clojure.pprint :as pprint]
+    [jmh.core :as jmh]))
+
+(defn run
+  "Run the benchmarks and print a table of their results.
+
+  Options:
+    :select - names of the benchmarks to run, default = all of them
+    :type - jmh-clojure preset, default = :quick"
+  [{:keys [select type]
+    :or {type :quick}}]
+  (let [env (cond-> (edn/read-string (slurp (io/resource "benchmarks.edn")))
+              select (update :benchmarks
+                             (fn [benchmarks]
+                               (filterv #(contains? (set select) (:name %))
+                                        benchmarks))))]
+    (pprint/print-table
+      [:name :params :mode :score]
+      (jmh/run env {:type type
+                    :status true}))))
@@ -0,0 +1,67 @@
+(ns juxt.pack.bench.copy
+  "Copying a file to a :dir output and deflating it into an archive entry,
+  through streams and heap buffers as vfs used to, and with NIO as it does
+  now."
+  (:require
+    [clojure.java.io :as io]
+    [juxt.pack.impl.vfs :as vfs]
+    [juxt.pack.impl.zip :as zip])
+  (:import
+    [java.io File InputStream OutputStream]
+    [java.util.jar JarEntry JarOutputStream]))
+
+(defn input
+  "A temp file of size bytes of text-like data, which deflates about as well
+  as source and resources do."
+  ^File [size]
+  (let [file (doto (File/createTempFile "pack-bench" ".txt") .deleteOnExit)
+        random (java.util.Random. 42)
+        buf (byte-array 4096)]
+    (with-open [out (io/output-stream file)]
+      (loop [remaining (long size)]
+        (when (pos? remaining)
+          (dotimes [i (alength buf)]
+            (aset buf i (byte (+ 97 (.nextInt random 16)))))
+          (.write out buf 0 (int (min remaining (alength buf))))
+          (recur (- remaining (alength buf))))))
+    file))
+
+(defn target
+  ^File []
+  (doto (File/createTempFile "pack-bench" ".out") .deleteOnExit))
+
+(defn copy-stream
+  "As the :dir writer copied files, with io/copy and its 1KB buffer."
+  [file out]
+  (with-open [in (io/input-stream file)]
+    (io/copy in out)))
+
+(defn copy-nio
+  "As the :dir writer copies files, with FileChannel.transferTo."
+  [file out]
+  (#'vfs/copy-child {:file file} out))
+
+(defn- write!
+  "The loop vfs used to copy an input into an archive entry with."
+  [^OutputStream stream ^InputStream in]
+  (let [buf (byte-array 1024)]
+    (with-open [in in]
+      (loop [n (.read in buf)]
+        (when-not (= -1 n)
+          (.write stream buf 0 n)
+          (recur (.read in buf)))))))
+
+(defn deflate-stream
+  "As archive entries were deflated, copied 1KB at a time from a stream into
+  a JarOutputStream."
+  [^File file]
+  (with-open [out (JarOutputStream. (OutputStream/nullOutputStream))]
+    (.putNextEntry out (JarEntry. (.getName file)))
+    (write! out (io/input-stream file))
+    (.closeEntry out)))
+
+(defn deflate-file
+  "As archive entries of files are deflated, read from a FileChannel into a
+  direct buffer."
+  [file]
+  (zip/delete-spool (:data (zip/deflate-file file {}))))
@@ -0,0 +1,70 @@
+(ns juxt.pack.bench.tree
+  "Writing a jar of a large synthetic tree of small files, where per-entry
+  costs such as writing parent directories dominate, as vfs does now and as
+  it did before it tracked the directories written."
+  (:require
+    [clojure.java.io :as io]
+    [clojure.string :as string]
+    [juxt.pack.impl.elodin :as elodin]
+    [juxt.pack.impl.vfs :as vfs]
+    [me.raynes.fs :as fs])
+  (:import
+    [java.io File OutputStream]
+    [java.nio.file Files]
+    [java.nio.file.attribute FileAttribute]
+    [java.util.jar JarEntry JarOutputStream]
+    [java.util.zip CRC32 ZipEntry ZipException ZipOutputStream]))
+
+(defn tree
+  "A temp directory of dirs x subdirs directories, each holding files one
+  byte files, deleted on exit."
+  ^File [dirs subdirs files]
+  (let [root (.toFile (Files/createTempDirectory "pack-bench" (make-array FileAttribute 0)))]
+    (.addShutdownHook (Runtime/getRuntime) (Thread. ^Runnable #(fs/delete-dir root)))
+    (dotimes [d dirs]
+      (dotimes [s subdirs]
+        (let [dir (io/file root (str "d" d) (str "s" s))]
+          (.mkdirs dir)
+          (dotimes [f files]
+            (spit (io/file dir (str "f" f ".txt")) "x")))))
+    root))
+
+(defn write-jar
+  "Write a stored jar of dir to the null stream, on one thread, so the
+  result is the cost per entry rather than of compression."
+  [dir]
+  (vfs/write-vfs {:type :jar
+                  :stream (java.io.OutputStream/nullOutputStream)
+                  :parallelism 1
+                  :compression {:store #{"txt"}}}
+                 (vfs/dir-path dir)))
+
+(defn- create-parents
+  "As the jar writer used to add the parents of each entry, putting every one
+  and catching the duplicate entry exception."
+  [^ZipOutputStream out path-seq]
+  (doseq [parent (elodin/path-seq-parents path-seq)
+          :let [dir (str (string/join "/" parent) "/")]]
+    (try
+      (.putNextEntry out (ZipEntry. dir))
+      (catch ZipException e
+        (when-not (re-matches #"duplicate entry:.*" (.getMessage e))
+          (throw e)))
+      (finally
+        (.closeEntry out)))))
+
+(defn write-jar-before
+  "As write-jar, the way the jar writer did before it tracked the directories
+  it had written: create-parents for each file, then the stored entry."
+  [dir]
+  (with-open [out (JarOutputStream. (OutputStream/nullOutputStream))]
+    (doseq [{:keys [path ^File file]} (vfs/dir-path dir)]
+      (create-parents out path)
+      (let [data (Files/readAllBytes (.toPath file))
+            crc (doto (CRC32.) (.update data))]
+        (.putNextEntry out (doto (JarEntry. ^String (string/join "/" path))
+                             (.setMethod ZipEntry/STORED)
+                             (.setSize (alength data))
+                             (.setCrc (.getValue crc))))
+        (.write out data)
+        (.closeEntry out)))))
@@ -1,4 +1,32 @@
-(ns juxt.pack.api)
+(ns juxt.pack.api
+  "Functions to build artifacts from a basis.
+
+  Output options
+    These are taken by skinny, skinny-watch, library, aws-lambda, one-jar and
+    build, and apply to every jar, zip or directory they write.
+    :parallelism - number of threads to compress entries with,
+                   default = number of processors
+    :reproducible - if true, output the same bytes for the same inputs.  Every
+                    entry has the time 1980-02-01T00:00:00Z and rw-r--r--
+                    permissions (rwxr-xr-x for directories), default = false
+    :compression - map of how to compress entries:
+                     :level - deflate level, 0-9
+                     :store - set of file extensions to store uncompressed,
+                              or :default for already compressed formats
+                              (jar, zip, gz, png, jpg, woff2, etc.)
+                     :sniff - if true, store entries whose content is
+                              already compressed, by its magic bytes
+                     :min-savings - store entries which deflate shrinks by
+                                    less than this fraction, e.g. 0.05
+                   default = deflate everything at the default level
+    :max-open-files - most input files to have open at once, over everything
+                      the call writes (for build, every artifact), default =
+                      256
+    :listener - function called with a map for each entry and nested archive
+                written, with sizes, compression ratio and timings, and a
+                :summary after each output written.  It's called from
+                several threads at once, so it must be thread-safe.  See
+                juxt.pack.impl.vfs/write-vfs for the events, default = nil")
 
 (defn docker
   "Build a docker image via jib.
@@ -18,14 +46,44 @@
     :layers - ordered coll of:
                 :paths - built-in layer, paths from basis
                 :libs - built-in layer, libs from basis
+                :release-libs - built-in layer, maven libs with a release
+                                version
+                :snapshot-libs - built-in layer, snapshot, local and git libs
+                :resources - built-in layer, files in paths other than classes
+                :classes - built-in layer, class files in paths
                 instance of Jib FileEntriesLayer
               default = [:libs :paths]
+    :lib-layer-size - libs of at least this many bytes get a layer each, just
+                      before that of the other libs, so they're only pushed
+                      again when they change, default = nil
     :platforms - optional, a set of keywords of the form :<os>/<architecture>
                  e.g. #{:linux/amd64 :linux/arm64}
     :entrypoint - ordered coll to use as command to run, defaults to running your program
+    :cds - true or a map, to add a class data sharing archive, which speeds up
+           startup, as a layer of its own and use it in the entrypoint.  It's
+           made by running your program locally, on a copy of the image's
+           classpath, with :paths and directory libs as jars.  The java it's
+           made with must be the same build as the image's, so it needs
+           :jlink, or :base-image and the :java of the same build.  Map of:
+             :args - args to clojure.main for the training run, which must
+                     exit, default = :main-opts of basis
+             :java - java to run, default = java, or the :jlink runtime
+           default = nil
 
     Runtime:
-    :base-image - base docker image to use, default = gcr.io/distroless/java:11
+    :jlink - true or a map, to add a Java runtime of only the modules your
+             program uses, made with jlink from the local JDK, as a layer of
+             its own at /opt/java, and run it in the entrypoint.  It's made for
+             the local platform, so build on the image's platform: any other
+             in :platforms (default linux/amd64) is an error.  The modules
+             are found with jdeps.  Map of:
+               :modules - modules to use instead of those jdeps finds
+               :add-modules - modules to add, e.g. ones loaded by reflection
+                              like jdk.crypto.ec or jdk.localedata
+             default = nil
+    :base-image - base docker image to use, default =
+                  gcr.io/distroless/java:11, or
+                  gcr.io/distroless/java-base-debian12 with :jlink
     :user - user to run the container as, string in format of user, uid, :group,
             :gid, user:group, uid:gid, uid:group, user:gid
 
@@ -40,11 +98,31 @@
     Repeatability:
     :creation-time - java.time.Instant to set creation time of image to, default = (Instant/now)
 
+    Build:
+    :executor - ExecutorService for Jib to run its steps on, default = one of
+                Jib's own.  Jib's steps wait on steps they submit, so a
+                fixed size pool can deadlock; it should be able to grow,
+                like Executors/newCachedThreadPool
+    :base-image-cache - directory to cache base image layers in, default =
+                        Jib's in ~/.cache
+    :application-cache - directory to cache the image's own layers in, so
+                         unchanged layers aren't built again, default = a
+                         new temporary directory each time
+
   Image types:
     :docker - Upload to docker daemon
     :registry - Upload to a registry, uses :to-registry if set,
                 otherwise ~/.docker/config.json
-    :tar - Write a tar file, requires :tar-file to be set"
+    :tar - Write a tar file, requires :tar-file to be set
+
+  Returns a map of :image-digest, :image-id, :tags, the Jib :container, and
+  :timings, of where the time went:
+    {:timers [{:description, :nanos, :children}],
+     :progress [{:description, :allocations, :allocation-units, :units, :nanos}],
+     :nanos}
+  :timers are Jib's steps, e.g. building (hashing and compressing) a layer or
+  pushing a blob, and :progress the time from the first to the last progress
+  of each kind of work."
   [params]
   ((requiring-resolve 'juxt.pack.jib/jib) params))
 
@@ -60,10 +138,46 @@
     :path - location to output :paths to, if not supplied :paths aren't output,
             default = nil
     :path-coerce - nil or :jar. :jar will output a jar file to :path instead of
-                   a directory, default = nil"
+                   a directory, default = nil
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc
+    :sync - if true, files which are unchanged since the last run are left
+            as they are instead of being copied again, and files which
+            were output before but aren't any more are deleted.  Files
+            pack didn't write are never touched.  Maven and git libs are
+            hard linked rather than copied where the file system allows,
+            default = false
+    :cds - map, to make a class data sharing archive, which speeds up
+           startup, by running your program on the output.  Needs :path and
+           :libs, with :path-coerce and :lib-coerce :jar.  A java @-file to
+           run it with the archive and the same classpath is written to
+           <file>.args, use as `java @<file>.args`.  Map of:
+             :file - required, archive to create
+             :args - args to clojure.main for the training run, which must
+                     exit, default = :main-opts of basis
+             :java - java to run, default = java
+           default = nil"
   [params]
   ((requiring-resolve 'juxt.pack.skinny/skinny) params))
 
+(defn skinny-watch
+  "Output :paths like skinny, then keep the output up to date as files under
+  them change.  Changes are batched until there have been none for 50ms.  A
+  directory only has the changed files copied or deleted, and a jar is
+  rewritten reusing the compressed entries of unchanged files.
+
+  Returns a function which stops watching.
+
+  Options
+    :basis - required, basis to use to get deps and paths
+    :path - required, location to output :paths to
+    :path-coerce - nil or :jar. :jar will output a jar file to :path instead of
+                   a directory, default = nil
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc"
+  [params]
+  ((requiring-resolve 'juxt.pack.skinny/skinny-watch) params))
+
 (defn library
   "Produce a library from :paths in a basis
 
@@ -72,7 +186,9 @@
     :path - required, location to output library to
     :pom - input pom.xml, if provided will be copied to
            META-INF/maven/<group>/<artifact>/pom.xml
-    :lib - required if :pom supplied, used to create pom.xml path"
+    :lib - required if :pom supplied, used to create pom.xml path
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc"
   [params]
   ((requiring-resolve 'juxt.pack.library/library) params))
 
@@ -86,7 +202,13 @@
 
   Options
     :basis - required, basis to use to get deps and paths
-    :lambda-file - required, lambda file to create"
+    :lambda-file - required, lambda file to create
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc
+    :incremental - if true, libs and files unchanged since the last
+                   incremental build of :lambda-file are copied from it
+                   instead of being rebuilt.  Input fingerprints are kept in
+                   <lambda-file>.inputs.edn, default = false"
   [params]
   ((requiring-resolve 'juxt.pack.aws-lambda/aws-lambda) params))
 
@@ -103,6 +225,8 @@
     - This may be replaced with Uno-Jar in the future
     - Classpath scanning mechanisms don't work with One-Jar, as it uses a
       custom URL scheme.
+    - The One-Jar bootstrap is compiled from source with javac the first time
+      it's needed, and then cached, so that first build must run on a JDK.
 
   Options
     :basis - required, basis to get libs and paths
@@ -110,6 +234,31 @@
     :main-class - main class to run jar with default = clojure.main, changing
                   this requires the use of aot and is considered more advanced.
                   Prefer setting :main-opts in your basis and using
-                  clojure.main to load your main."
+                  clojure.main to load your main.
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc
+    :incremental - if true, libs and paths unchanged since the last
+                   incremental build of :jar-file are copied from it instead
+                   of being rebuilt.  Input fingerprints are kept in
+                   <jar-file>.inputs.edn, default = false"
   [params]
   ((requiring-resolve 'juxt.pack.one-jar/one-jar) params))
+
+(defn build
+  "Build several artifacts from one basis, sharing one scan of its inputs.
+  Classpath roots are classified and their directories walked once, and each
+  directory converted to a jar (for one-jar, aws-lambda and a :lib-coerce :jar
+  skinny) at most once, then the artifacts are all written concurrently.
+
+  Returns a vector of what each artifact's function returns.
+
+  Options
+    :basis - required, basis to use to get deps and paths
+    :artifacts - required, coll of maps, each with the options of one artifact
+                 apart from :basis, and a :type, one of :skinny :library
+                 :one-jar :aws-lambda or :docker
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc.  Used for the
+      converted jars and as the default for every artifact"
+  [params]
+  ((requiring-resolve 'juxt.pack.build/build) params))
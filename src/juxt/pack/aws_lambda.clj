@@ -3,40 +3,35 @@
     [clojure.java.io :as io]
     [clojure.tools.deps.util.dir :refer [canonicalize]]
     [juxt.pack.impl.elodin :as elodin]
+    [juxt.pack.impl.inventory :as inventory]
     [juxt.pack.impl.vfs :as vfs]
     [juxt.pack.impl.lib-map :as lib-map]))
 
 (defn- write-zip
-  [basis output]
-  (vfs/write-vfs
-    {:type :zip
-     :stream (io/output-stream output)}
+  [basis output opts]
+  (vfs/write-file
+    output
+    (merge opts {:type :zip})
     (concat
       (map
         (fn [{:keys [path] :as all}]
-          {:input (io/input-stream path)
+          {:file (io/file path)
            :path ["lib" (elodin/jar-name all)]})
         (lib-map/lib-jars (:libs basis)))
 
       (map
         (fn [{:keys [path lib] :as all}]
-          {:paths (vfs/files-path
-                    (file-seq (io/file path))
-                    (io/file path))
-           :path ["lib" (format "%s.jar" (elodin/directory-name all))]})
+          (assoc (inventory/dir-jar basis opts path)
+                 :path ["lib" (format "%s.jar" (elodin/directory-name all))]))
         (lib-map/lib-dirs (:libs basis)))
 
       (mapcat
-        (fn [dir]
-          (let [root (io/file dir)]
-            (vfs/files-path
-              (file-seq root)
-              root)))
+        #(inventory/dir-path basis %)
         (keep
           #(when (:path-key (val %))
              (canonicalize (io/file (key %))))
           (:classpath basis))))))
 
 (defn aws-lambda
-  [{:keys [basis lambda-file]}]
-  (write-zip basis lambda-file))
+  [{:keys [basis lambda-file] :as params}]
+  (write-zip basis lambda-file (vfs/share-open-files (select-keys params vfs/output-options))))
@@ -44,6 +44,8 @@ import java.util.zip.ZipFile;
  *   -Done-jar.record[=recording] Record loaded classes into "recording" directory.
  *                                Flatten jar.names into directory tree suitable 
  * 								  for use as a classpath.
+ *   -Done-jar.recording={path}   Directory to record into, or a .jar/.zip file to
+ *                                record into a single archive.
  *   -Done-jar.jar.names          Record loaded classes, preserve jar structure
  *   -Done-jar.verbose            Run the JarClassLoader in verbose mode.
  * </pre>
@@ -76,6 +78,7 @@ public class Boot {
 	public final static String P_MAIN_JAR = PROPERTY_PREFIX + "main.jar";
     public final static String P_MAIN_APP = PROPERTY_PREFIX + "main.app";
 	public final static String P_RECORD = PROPERTY_PREFIX + "record";
+	public final static String P_RECORDING = PROPERTY_PREFIX + "recording";
 	public final static String P_JARNAMES = PROPERTY_PREFIX + "jar.names";
 	public final static String P_VERBOSE = PROPERTY_PREFIX + "verbose";
 	public final static String P_INFO = PROPERTY_PREFIX + "info";
@@ -87,6 +90,9 @@ public class Boot {
     public final static String P_JAVA_CLASS_PATH = "java.class.path";
     public final static String P_PATH_SEPARATOR = "|";
     public final static String P_EXPAND_DIR = PROPERTY_PREFIX + "expand.dir";
+    public final static String P_CALLER_DEPTH = PROPERTY_PREFIX + "caller.depth";
+    public final static String P_PARENT_FIRST = PROPERTY_PREFIX + "parent.first";
+    public final static String P_COMPRESSED = PROPERTY_PREFIX + "compressed";
     
     // Command-line arguments
     public final static String A_HELP    = "--one-jar-help";
@@ -96,6 +102,7 @@ public class Boot {
         P_MAIN_CLASS, "Specifies the name of the class which should be executed \n(via public static void main(String[])", 
         P_MAIN_APP,   "Specifies the name of the main/<app>.jar to be executed", 
         P_RECORD,     "true:  Enables recording of the classes loaded by the application",
+        P_RECORDING,  "Directory, or single .jar/.zip archive, to record classes into (default recording)",
         P_JARNAMES,   "true:  Recorded classes are kept in directories corresponding to their jar names.\n" + 
                       "false: Recorded classes are flattened into a single directory.  \nDuplicates are ignored (first wins)",
         P_VERBOSE,    "true:  Print verbose classloading information", 
@@ -105,6 +112,12 @@ public class Boot {
         P_JARPATH,    "Full path of the one-jar file being executed.  \nOnly needed if java.class.path does not contain the path to the jar, e.g. on Max OS/X.",
         P_ONE_JAR_CLASS_PATH,    "Extra classpaths to be added to the execution environment.  \nUse platform independent path separator '" + P_PATH_SEPARATOR + "'",
         P_EXPAND_DIR, "Directory to use for expanded files.",
+        P_CALLER_DEPTH, "Number of stack frames searched for the class requesting a resource, \n" +
+                        "so that its own jar is searched first (default " + JarClassLoader.DEFAULT_CALLER_DEPTH + ", 0 disables)",
+        P_PARENT_FIRST, "true:  Always ask the parent classloader first, even for packages \n" +
+                        "only found in jars inside the One-JAR",
+        P_COMPRESSED, "true:  Keep the contents of library jars compressed in memory, \n" +
+                      "inflating each entry when it is used",
         P_SHOW_PROPERTIES, "true:  Shows the JVM system properties.",
     };
 	
@@ -354,7 +367,7 @@ public class Boot {
         INFO("setProperties(" + jarloader + ")");
         if (getProperty(P_RECORD, "false")) {
             jarloader.setRecord(true);
-            jarloader.setRecording(System.getProperty(P_RECORD));
+            jarloader.setRecording(System.getProperty(P_RECORDING));
         } 
         if (getProperty(P_JARNAMES, "false")) {
             jarloader.setRecord(true);
@@ -366,6 +379,8 @@ public class Boot {
             jarloader.setInfo(true);
         } 
         jarloader.setInfo(info=getProperty(P_INFO, "false"));
+        jarloader.setParentFirst(getProperty(P_PARENT_FIRST, "false"));
+        jarloader.setCompressed(getProperty(P_COMPRESSED, "false"));
         jarloader.setWarning(warning=getProperty(P_WARNING, "true"));
         
         statistics = getProperty(P_STATISTICS, "false");
@@ -13,5 +13,7 @@ public interface IProperties {
     public void setRecord(boolean record);
     public void setFlatten(boolean flatten);
     public void setRecording(String recording);
+    public void setParentFirst(boolean parentFirst);
+    public void setCompressed(boolean compressed);
     
 }
@@ -31,9 +31,12 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
 import java.security.CodeSource;
 import java.security.ProtectionDomain;
 import java.security.cert.Certificate;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -44,7 +47,11 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -53,6 +60,9 @@ import java.util.jar.Manifest;
 import java.util.jar.Attributes.Name;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Loads classes from pre-defined locations inside the jar file containing this
@@ -83,11 +93,32 @@ public class JarClassLoader extends ClassLoader implements IProperties {
     public final static String SHOW_EXPAND = "One-Jar-Show-Expand";
     public final static String CONFIRM_EXPAND = "One-Jar-Confirm-Expand";
     public final static String CLASS = ".class";
+    public final static String MULTI_RELEASE = "Multi-Release";
+    public final static String VERSIONS_PREFIX = "META-INF/versions/";
+    public final static int BASE_VERSION = 8;
+    public final static int DEFAULT_CALLER_DEPTH = 32;
     
     public final static String NL = System.getProperty("line.separator");
     
     public final static String JAVA_PROTOCOL_HANDLER = "java.protocol.handler.pkgs";
     
+    // Same switches as java.util.jar.JarFile uses for multi-release jars.
+    public final static String P_ENABLE_MULTI_RELEASE = "jdk.util.jar.enableMultiRelease";
+    public final static String P_JAR_VERSION = "jdk.util.jar.version";
+    
+    /**
+     * The feature version used to select entries from multi-release jars, 
+     * e.g. 17 when running on Java 17.  Java 8 and older report BASE_VERSION
+     * and so only ever see the base entries.
+     */
+    public final static int RUNTIME_VERSION = runtimeVersion();
+    
+    /**
+     * Packages provided by the runtime itself.  These are never owned by a 
+     * One-JAR, even if a library in it bundles its own copy.
+     */
+    public final static Set RUNTIME_PACKAGES = runtimePackages();
+    
     protected String name;
     protected boolean noExpand, expanded;
     protected ClassLoader externalClassLoader;
@@ -138,16 +169,65 @@ public class JarClassLoader extends ClassLoader implements IProperties {
     protected Map pdCache = Collections.synchronizedMap(new HashMap());
     protected Map binLibPath = Collections.synchronizedMap(new HashMap());
     protected Set jarNames = Collections.synchronizedSet(new HashSet());
+    // Packages whose classes only come from our jars: loadClass goes straight
+    // to findClass for these instead of failing through the parent first.
+    protected Set ownedPackages = ConcurrentHashMap.newKeySet();
     
     protected boolean record = false, flatten = false, unpackFindResource = false;
     protected boolean verbose = false, info = false, warning = true;
+    protected boolean parentFirst = false, compressed = false;
     protected String recording = RECORDING;
+    protected volatile Recorder recorder;
     
     protected String jarName, mainJar, wrapDir;
     protected boolean delegateToParent;
     
+    // Jar-local resource resolution: how far up the stack to look for the 
+    // calling class, and the codebase each class was defined from.
+    protected int callerDepth = Integer.getInteger(Boot.P_CALLER_DEPTH, DEFAULT_CALLER_DEPTH).intValue();
+    protected final static StackWalker walker = callerWalker();
+    protected final ClassValue codebases = new ClassValue() {
+        protected Object computeValue(Class cls) {
+            // Only classes we defined ourselves have a codebase, and our own 
+            // classloader classes never count as the caller.
+            if (cls.getClassLoader() != JarClassLoader.this || cls.getName().startsWith("com.simontuffs.onejar")) return "";
+            ByteCode bytecode = (ByteCode)byteCode.get(cls.getName().replace('.', '/') + CLASS);
+            return bytecode != null? bytecode.codebase: "";
+        }
+    };
+    protected final Function callerFinder = new Function() {
+        public Object apply(Object frames) {
+            Iterator iter = ((Stream)frames).limit(callerDepth).iterator();
+            while (iter.hasNext()) {
+                Class cls = ((StackWalker.StackFrame)iter.next()).getDeclaringClass();
+                if (getCodeBase(cls) != null) return cls;
+            }
+            return null;
+        }
+    };
+    
     protected static class ByteCode {
 		public ByteCode(String $name, JarEntry $entry, ByteArrayOutputStream baos, String $codebase, Manifest $manifest) {
+            this($name, $entry, $codebase, $manifest);
+            bytes = baos.toByteArray();
+        }
+		public ByteCode(String $name, JarEntry $entry, RawEntry $raw, String $codebase, Manifest $manifest) {
+		    this($name, $entry, $codebase, $manifest);
+		    raw = $raw;
+		}
+		/**
+		 * Another name for the same bytes, e.g. the jar-local name of a resource.
+		 */
+		public ByteCode(String $name, ByteCode $other) {
+		    name = $name;
+		    original = $other.original;
+		    lastModified = $other.lastModified;
+		    bytes = $other.bytes;
+		    raw = $other.raw;
+		    codebase = $other.codebase;
+		    manifest = $other.manifest;
+		}
+		protected ByteCode(String $name, JarEntry $entry, String $codebase, Manifest $manifest) {
             name = $name;
             original = $entry.getName();
 
@@ -158,16 +238,92 @@ public class JarClassLoader extends ClassLoader implements IProperties {
                 lastModified = 0;
             }
 
-            bytes = baos.toByteArray();
             codebase = $codebase;
 			manifest = $manifest;
         }
+        /**
+         * The (uncompressed) bytes of the entry.  Entries kept compressed
+         * are inflated on every call, so callers should hang on to the result.
+         */
+        public byte[] getBytes() throws IOException {
+            return bytes != null? bytes: raw.inflate();
+        }
+        public InputStream getStream() throws IOException {
+            return new ByteArrayInputStream(getBytes());
+        }
+        public boolean sameBytes(ByteCode other) {
+            // Compressed entries can be compared without inflating them.
+            if (raw != null && other.raw != null) {
+                return raw.size == other.raw.size && raw.crc == other.raw.crc;
+            }
+            try {
+                return Arrays.equals(getBytes(), other.getBytes());
+            } catch (IOException iox) {
+                return false;
+            }
+        }
+        // Exactly one of bytes and raw is set.
         public byte bytes[];
+        public RawEntry raw;
         public long lastModified;
         public String name, original, codebase;
 		public Manifest manifest;
     }
     
+    /**
+     * A jar entry kept exactly as it is stored in its jar (see one-jar.compressed).
+     * data[offset, offset+length) holds either the raw deflate stream or, for 
+     * STORED entries, the bytes themselves.  All entries of a jar share its data.
+     */
+    protected static class RawEntry {
+        // Inflaters are expensive to create (and hold native memory), so reuse them.
+        protected final static int POOL_SIZE = 16;
+        protected final static Queue inflaters = new ConcurrentLinkedQueue();
+        
+        public RawEntry(String $name, long $time, byte[] $data, int $offset, int $length, boolean $deflated, int $size, long $crc) {
+            name = $name;
+            time = $time;
+            data = $data;
+            offset = $offset;
+            length = $length;
+            deflated = $deflated;
+            size = $size;
+            crc = $crc;
+        }
+        
+        public byte[] inflate() throws IOException {
+            if (!deflated) return Arrays.copyOfRange(data, offset, offset + length);
+            Inflater inflater = (Inflater)inflaters.poll();
+            if (inflater == null) inflater = new Inflater(true);
+            try {
+                inflater.setInput(data, offset, length);
+                byte bytes[] = new byte[size];
+                int n = 0;
+                while (n < size) {
+                    int len = inflater.inflate(bytes, n, size - n);
+                    if (len == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                    n += len;
+                }
+                if (n != size) throw new IOException("Inflated " + n + " bytes of " + size + " for " + name);
+                return bytes;
+            } catch (DataFormatException dfx) {
+                throw new IOException("Unable to inflate " + name, dfx);
+            } finally {
+                inflater.reset();
+                if (inflaters.size() < POOL_SIZE) {
+                    inflaters.offer(inflater);
+                } else {
+                    inflater.end();
+                }
+            }
+        }
+        
+        public final String name;
+        public final long time, crc;
+        public final byte data[];
+        public final int offset, length, size;
+        public final boolean deflated;
+    }
     
     /**
      * Create a non-delegating but jar-capable classloader for bootstrap
@@ -350,7 +506,7 @@ public class JarClassLoader extends ClassLoader implements IProperties {
     public String load(String mainClass, String jarName) {
     	VERBOSE("load("+mainClass+","+jarName+")");
         if (record) {
-            new File(recording).mkdirs();
+            getRecorder();
         }
         try {
             if (jarName == null) {
@@ -539,6 +695,12 @@ public class JarClassLoader extends ClassLoader implements IProperties {
     }        
     
 	protected void loadByteCode(InputStream is, String jar, String tmp) throws IOException {
+        if (compressed && tmp == null) {
+            byte bytes[] = is.readAllBytes();
+            if (loadCompressedByteCode(bytes, jar)) return;
+            INFO("unable to keep " + jar + " compressed, inflating it instead");
+            is = new ByteArrayInputStream(bytes);
+        }
         JarInputStream jis = new JarInputStream(is);
         JarEntry entry = null;
         // TODO: implement lazy loading of bytecode.
@@ -546,8 +708,17 @@ public class JarClassLoader extends ClassLoader implements IProperties {
         if (manifest == null) {
             WARNING("Null manifest from input stream associated with: " + jar);
         }
+        boolean multiRelease = isMultiRelease(manifest);
+        // Version of the entry currently cached for each base name in this jar, 
+        // so that the best match wins regardless of the order of entries.
+        Map versions = new HashMap();
         while ((entry = jis.getNextJarEntry()) != null) {
             // if (entry.isDirectory()) continue;
+            if (multiRelease) {
+                String name = versionedName(entry.getName(), versions, jar);
+                if (name == null) continue;
+                if (!name.equals(entry.getName())) entry = versionedEntry(entry, name);
+            }
             loadBytes(entry, jis, jar, tmp, manifest);
         }
         // Add in a fake manifest entry.
@@ -561,27 +732,204 @@ public class JarClassLoader extends ClassLoader implements IProperties {
 
     }
 	
-	protected void loadBytes(JarEntry entry, InputStream is, String jar, String tmp, Manifest man) throws IOException {
-        String entryName = entry.getName();
-        int index = entryName.lastIndexOf('.');
-        String type = entryName.substring(index+1);
-        
-        // agattung: patch (for one-jar 0.95)
-        // add package handling to avoid NullPointer exceptions
-        // after calls to getPackage method of this ClassLoader
-        int index2 = entryName.lastIndexOf('/', index-1);
-        if (entryName.endsWith(CLASS) && index2 > -1) {
-            String packageName = entryName.substring(0, index2).replace('/', '.');
-            if (getPackage(packageName) == null) {
-                // Defend against null manifest.
-                if (man != null) {
-                    definePackage(packageName, man, urlFactory.getCodeBase(jar));
-                } else {
-                    definePackage(packageName, null, null, null, null, null, null, null);
-                }
-            }
+	/**
+	 * Cache a jar without inflating it: each entry keeps its raw deflate stream, 
+	 * pointing into the one copy of the jar's bytes, and is only inflated 
+	 * when it is used.
+	 * @return false, having cached nothing, if the jar uses something this 
+	 * reader doesn't handle (Zip64, encryption, unusual compression methods).
+	 */
+	protected boolean loadCompressedByteCode(byte[] bytes, String jar) throws IOException {
+	    List entries = readCentralDirectory(bytes);
+	    if (entries == null) return false;
+	    Manifest manifest = null;
+	    for (int i=0; i<entries.size(); i++) {
+	        RawEntry raw = (RawEntry)entries.get(i);
+	        if (raw.name.equalsIgnoreCase(Boot.MANIFEST)) {
+	            manifest = new Manifest(new ByteArrayInputStream(raw.inflate()));
+	            break;
+	        }
+	    }
+        if (manifest == null) {
+            WARNING("Null manifest from input stream associated with: " + jar);
+        }
+        boolean multiRelease = isMultiRelease(manifest);
+        Map versions = new HashMap();
+        for (int i=0; i<entries.size(); i++) {
+            RawEntry raw = (RawEntry)entries.get(i);
+            String name = multiRelease? versionedName(raw.name, versions, jar): raw.name;
+            if (name == null) continue;
+            JarEntry entry = new JarEntry(name);
+            if (raw.time != 0) entry.setTime(raw.time);
+            defineEntryPackage(name, jar, manifest);
+            cache(new ByteCode(name, entry, raw, jar, manifest));
+        }
+        VERBOSE("cached " + entries.size() + " compressed entries from " + jar);
+        return true;
+	}
+	
+	/**
+	 * Read the entries of a zip file from its central directory.  Returns
+	 * null if the file is not a zip file this simple reader can handle.
+	 */
+	protected static List readCentralDirectory(byte[] zip) {
+	    // The end of central directory record is 22 bytes, plus up to 64k of comment.
+	    int eocd = -1;
+	    for (int i=zip.length-22; i>=0 && i>=zip.length-22-0xFFFF; i--) {
+	        if (le32(zip, i) == 0x06054b50L) {
+	            eocd = i;
+	            break;
+	        }
+	    }
+	    if (eocd < 0) return null;
+	    int count = le16(zip, eocd + 10);
+	    long offset = le32(zip, eocd + 16);
+	    // Zip64
+	    if (count == 0xFFFF || offset == 0xFFFFFFFFL) return null;
+	    List entries = new ArrayList(count);
+	    int p = (int)offset;
+	    for (int i=0; i<count; i++) {
+	        if (p + 46 > zip.length || le32(zip, p) != 0x02014b50L) return null;
+	        int flags = le16(zip, p + 8);
+	        int method = le16(zip, p + 10);
+	        long crc = le32(zip, p + 16);
+	        long csize = le32(zip, p + 20);
+	        long size = le32(zip, p + 24);
+	        int nameLength = le16(zip, p + 28);
+	        int extraLength = le16(zip, p + 30);
+	        int commentLength = le16(zip, p + 32);
+	        long local = le32(zip, p + 42);
+	        if ((flags & 1) != 0 || (method != ZIP_STORED && method != ZIP_DEFLATED)) return null;
+	        if (csize >= Integer.MAX_VALUE || size >= Integer.MAX_VALUE || local >= Integer.MAX_VALUE) return null;
+	        if (p + 46 + nameLength > zip.length) return null;
+	        String name = new String(zip, p + 46, nameLength, StandardCharsets.UTF_8);
+	        int l = (int)local;
+	        if (l + 30 > zip.length || le32(zip, l) != 0x04034b50L) return null;
+	        int data = l + 30 + le16(zip, l + 26) + le16(zip, l + 28);
+	        if (data + csize > zip.length) return null;
+	        entries.add(new RawEntry(name, dosToJavaTime(le16(zip, p + 14), le16(zip, p + 12)), 
+	                zip, data, (int)csize, method == ZIP_DEFLATED, (int)size, crc));
+	        p += 46 + nameLength + extraLength + commentLength;
+	    }
+	    return entries;
+	}
+	
+	protected final static int ZIP_STORED = 0, ZIP_DEFLATED = 8;
+	
+	protected static int le16(byte[] b, int i) {
+	    return (b[i] & 0xff) | ((b[i+1] & 0xff) << 8);
+	}
+	
+	protected static long le32(byte[] b, int i) {
+	    return (le16(b, i) | ((long)le16(b, i+2) << 16)) & 0xFFFFFFFFL;
+	}
+	
+	protected static long dosToJavaTime(int date, int time) {
+	    if (date == 0) return 0;
+	    try {
+	        return LocalDateTime.of(((date >> 9) & 0x7f) + 1980, (date >> 5) & 0x0f, date & 0x1f,
+	                (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time << 1) & 0x3e)
+	            .atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+	    } catch (DateTimeException dtx) {
+	        return 0;
+	    }
+	}
+	
+    /**
+     * True if the manifest of a nested jar declares it to be a multi-release 
+     * jar, subject to the same jdk.util.jar.enableMultiRelease switch as 
+     * JarFile ("false" ignores versioned entries, "force" always honours them).
+     */
+    protected boolean isMultiRelease(Manifest manifest) {
+        String enable = System.getProperty(P_ENABLE_MULTI_RELEASE, "true");
+        if ("force".equalsIgnoreCase(enable)) return true;
+        if (!"true".equalsIgnoreCase(enable) || manifest == null) return false;
+        return "true".equalsIgnoreCase(manifest.getMainAttributes().getValue(MULTI_RELEASE));
+    }
+    
+    /**
+     * Returns the Java version of a META-INF/versions/N/ entry, or BASE_VERSION 
+     * for any other entry.  Like JarFile, versions below 9 are not treated 
+     * as versioned entries.
+     */
+    protected static int entryVersion(String name) {
+        if (!name.startsWith(VERSIONS_PREFIX)) return BASE_VERSION;
+        int end = name.indexOf('/', VERSIONS_PREFIX.length());
+        if (end < 0 || end == name.length() - 1) return BASE_VERSION;
+        try {
+            int version = Integer.parseInt(name.substring(VERSIONS_PREFIX.length(), end));
+            return version > BASE_VERSION? version: BASE_VERSION;
+        } catch (NumberFormatException nfx) {
+            return BASE_VERSION;
+        }
+    }
+    
+    protected static int runtimeVersion() {
+        String version = System.getProperty(P_JAR_VERSION);
+        if (version == null) version = System.getProperty("java.specification.version", "");
+        // 1.8 and earlier.
+        if (version.startsWith("1.")) return BASE_VERSION;
+        try {
+            int runtime = Integer.parseInt(version.trim());
+            return runtime > BASE_VERSION? runtime: BASE_VERSION;
+        } catch (NumberFormatException nfx) {
+            return BASE_VERSION;
+        }
+    }
+    
+    /**
+     * The name to cache an entry of a multi-release jar under, or null if it
+     * should be skipped: either it needs a newer Java, or this jar has a 
+     * better version of it already.
+     * @param versions The version cached for each base name in this jar so far.
+     */
+    protected String versionedName(String $entry, Map versions, String jar) {
+        int version = entryVersion($entry);
+        if (version > RUNTIME_VERSION) {
+            VERBOSE("skipping " + $entry + " (requires Java " + version + ")");
+            return null;
+        }
+        if (version > BASE_VERSION) {
+            String base = $entry.substring($entry.indexOf('/', VERSIONS_PREFIX.length()) + 1);
+            Integer cached = (Integer)versions.get(base);
+            if (cached != null && cached.intValue() >= version) return null;
+            if (cached != null) uncache(base, jar);
+            versions.put(base, Integer.valueOf(version));
+            VERBOSE("using " + $entry + " for " + base);
+            return base;
+        }
+        if (versions.containsKey($entry)) return null;
+        versions.put($entry, Integer.valueOf(BASE_VERSION));
+        return $entry;
+    }
+    
+    /**
+     * A copy of a versioned entry under its base name, so that it is cached
+     * (and recorded) exactly as the base entry it replaces.
+     */
+    protected JarEntry versionedEntry(JarEntry entry, String base) {
+        JarEntry versioned = new JarEntry(base);
+        if (entry.getLastModifiedTime() != null) {
+            versioned.setLastModifiedTime(entry.getLastModifiedTime());
         }
-        // end patch
+        return versioned;
+    }
+    
+    /**
+     * Drop the bytes cached for an entry from the given jar so a better 
+     * versioned entry can take its place.  Entries owned by other jars are 
+     * left alone: the first jar to define a name still wins.
+     */
+    protected void uncache(String entryName, String jar) {
+        byteCode.remove(jar + "/" + entryName);
+        ByteCode existing = (ByteCode)byteCode.get(entryName);
+        if (existing != null && jar.equals(existing.codebase)) {
+            byteCode.remove(entryName);
+        }
+    }
+	
+	protected void loadBytes(JarEntry entry, InputStream is, String jar, String tmp, Manifest man) throws IOException {
+        defineEntryPackage(entry.getName(), jar, man);
         
         // Because we are doing stream processing, we don't know what
         // the size of the entries is.  So we store them dynamically.
@@ -597,32 +945,60 @@ public class JarClassLoader extends ClassLoader implements IProperties {
             fos.close();
             
         } else {
-            // If entry is a class, check to see that it hasn't been defined
-            // already.  Class names must be unique within a classloader because
-            // they are cached inside the VM until the classloader is released.
-            if (type.equals("class")) {
-                if (alreadyCached(entryName, jar, baos)) return;
-				byteCode.put(entryName, new ByteCode(entryName, entry, baos, jar, man));
-                VERBOSE("cached bytes for class " + entryName);
-            } else {
-                // Another kind of resource.  Cache this by name, and also prefixed
-                // by the jar name.  Don't duplicate the bytes.  This allows us
-                // to map resource lookups to either jar-local, or globally defined.
-                String localname = jar + "/" + entryName;
-				byteCode.put(localname, new ByteCode(localname, entry, baos, jar, man));
-                // Keep a set of jar names so we can do multiple-resource lookup by name
-                // as in findResources().
-                jarNames.add(jar);
-                VERBOSE("cached bytes for local name " + localname);
-                // Only keep the first non-local entry: this is like classpath where the first
-                // to define wins.  
-                if (alreadyCached(entryName, jar, baos)) return;
-
-                byteCode.put(entryName, new ByteCode(entryName, entry, baos, jar, man));
-                VERBOSE("cached bytes for entry name " + entryName);
-                
+            cache(new ByteCode(entry.getName(), entry, baos, jar, man));
+        }
+    }
+	
+	/**
+	 * agattung: patch (for one-jar 0.95)
+	 * add package handling to avoid NullPointer exceptions
+	 * after calls to getPackage method of this ClassLoader
+	 */
+	protected void defineEntryPackage(String entryName, String jar, Manifest man) throws IOException {
+        int index = entryName.lastIndexOf('/');
+        if (entryName.endsWith(CLASS) && index > -1) {
+            String packageName = entryName.substring(0, index).replace('/', '.');
+            if (getPackage(packageName) == null) {
+                // Defend against null manifest.
+                if (man != null) {
+                    definePackage(packageName, man, urlFactory.getCodeBase(jar));
+                } else {
+                    definePackage(packageName, null, null, null, null, null, null, null);
+                }
             }
         }
+	}
+	
+	protected void cache(ByteCode bytecode) {
+	    String entryName = bytecode.name;
+	    String jar = bytecode.codebase;
+        // If entry is a class, check to see that it hasn't been defined
+        // already.  Class names must be unique within a classloader because
+        // they are cached inside the VM until the classloader is released.
+        if (entryName.endsWith(CLASS)) {
+            if (alreadyCached(entryName, jar, bytecode)) return;
+			byteCode.put(entryName, bytecode);
+            VERBOSE("cached bytes for class " + entryName);
+            int index = entryName.lastIndexOf('/');
+            if (index > -1) ownPackage(entryName.substring(0, index).replace('/', '.'), jar);
+        } else {
+            // Another kind of resource.  Cache this by name, and also prefixed
+            // by the jar name.  Don't duplicate the bytes.  This allows us
+            // to map resource lookups to either jar-local, or globally defined.
+            String localname = jar + "/" + entryName;
+			byteCode.put(localname, new ByteCode(localname, bytecode));
+            // Keep a set of jar names so we can do multiple-resource lookup by name
+            // as in findResources().
+            jarNames.add(jar);
+            VERBOSE("cached bytes for local name " + localname);
+            // Only keep the first non-local entry: this is like classpath where the first
+            // to define wins.  
+            if (alreadyCached(entryName, jar, bytecode)) return;
+
+            byteCode.put(entryName, bytecode);
+            VERBOSE("cached bytes for entry name " + entryName);
+            
+        }
     }
     
 	/**
@@ -636,17 +1012,63 @@ public class JarClassLoader extends ClassLoader implements IProperties {
         // is used to launch the jar application, and attempts to load through
         // it would fail if that code is encapsulated inside the one-jar.
         Thread.currentThread().setContextClassLoader(this);
+        if (ownsPackage(name)) {
+            // Only our jars define this package, so asking the parent (and 
+            // through it the boot loader) first would only fail.  Fall back to
+            // the usual parent-first lookup if we don't have the class after all.
+            synchronized (getClassLoadingLock(name)) {
+                Class cls = findLoadedClass(name);
+                if (cls == null) {
+                    try {
+                        cls = findClass(name);
+                    } catch (ClassNotFoundException cnfx) {
+                        // continue...
+                    }
+                }
+                if (cls != null) {
+                    if (resolve) resolveClass(cls);
+                    return cls;
+                }
+            }
+        }
 	    return super.loadClass(name, resolve);
 	}
 	
+	/**
+	 * Note that classes in the named package come from the given jar.  Classes 
+	 * at the top of the One-JAR (including our own) are also visible to the 
+	 * parent classloader, so only nested jars take ownership.
+	 */
+	protected void ownPackage(String packageName, String jar) {
+	    if (parentFirst || jar.equals("/") || packageName.startsWith("com.simontuffs.onejar")) return;
+	    if (RUNTIME_PACKAGES.contains(packageName)) return;
+	    if (ownedPackages.add(packageName)) VERBOSE("package " + packageName + " owned by " + jar);
+	}
+	
+	protected boolean ownsPackage(String className) {
+	    int i = className.lastIndexOf('.');
+	    return i > 0 && ownedPackages.contains(className.substring(0, i));
+	}
+	
+	protected static Set runtimePackages() {
+	    Set packages = new HashSet();
+	    Iterator modules = ModuleLayer.boot().modules().iterator();
+	    while (modules.hasNext()) {
+	        packages.addAll(((Module)modules.next()).getPackages());
+	    }
+	    return Collections.unmodifiableSet(packages);
+	}
+	
     /**
      * Locate the named class in a jar-file, contained inside the
      * jar file which was used to load <u>this</u> class.
      */
     protected Class findClass(String name) throws ClassNotFoundException {
-        // Delegate to external paths first
+        // Delegate to external paths first, unless one of our jars owns the
+        // package and has the class.
         Class cls = null;
-        if (externalClassLoader != null) {
+        String cache = name.replace('.', '/') + CLASS;
+        if (externalClassLoader != null && !(ownsPackage(name) && byteCode.containsKey(cache))) {
             try {
                 return externalClassLoader.loadClass(name);
             } catch (ClassNotFoundException cnfx) {
@@ -661,7 +1083,6 @@ public class JarClassLoader extends ClassLoader implements IProperties {
         // Look up the class in the byte codes.
         // Translate path?
         VERBOSE("findClass(" + name + ")");
-        String cache = name.replace('.', '/') + CLASS;
         ByteCode bytecode = (ByteCode)byteCode.get(cache);
         if (bytecode != null) {
             VERBOSE("found " + name + " in codebase '" + bytecode.codebase + "'");
@@ -684,7 +1105,12 @@ public class JarClassLoader extends ClassLoader implements IProperties {
             }
             
             // Do it the simple way.
-            byte bytes[] = bytecode.bytes;
+            byte bytes[];
+            try {
+                bytes = bytecode.getBytes();
+            } catch (IOException iox) {
+                throw new ClassNotFoundException(name, iox);
+            }
 			
 			int i = name.lastIndexOf('.');
 			if (i != -1) {
@@ -812,24 +1238,30 @@ public class JarClassLoader extends ClassLoader implements IProperties {
         return defineClass(name, bytes, 0, bytes.length, pd);
     }
     
+    /**
+     * Hand a class over to the recorder.  This is called from findClass, so
+     * it must not block: the recorder does the actual writing on its own thread.
+     */
     protected void record(ByteCode bytecode) {
-        String fileName = bytecode.original;
-        // Write out into the record directory.
-        File dir = new File(recording, flatten? "": bytecode.codebase);
-        File file = new File(dir, fileName);
-        if (!file.exists()) {
-            file.getParentFile().mkdirs();
-            VERBOSE("" + file);
-            try {
-                FileOutputStream fos = new FileOutputStream(file);
-                fos.write(bytecode.bytes);
-                fos.close();
-                
-            } catch (IOException iox) {
-                System.err.println(PREFIX() + "unable to record " + file + ": " + iox);
+        String fileName = flatten? bytecode.original: bytecode.codebase + "/" + bytecode.original;
+        try {
+            getRecorder().record(fileName, bytecode.getBytes());
+        } catch (IOException iox) {
+            WARNING("unable to record " + fileName + ": " + iox);
+        }
+    }
+    
+    protected Recorder getRecorder() {
+        Recorder result = recorder;
+        if (result == null) {
+            synchronized (this) {
+                result = recorder;
+                if (result == null) {
+                    recorder = result = new Recorder(recording);
+                }
             }
-            
         }
+        return result;
     }
     
     /**
@@ -894,7 +1326,13 @@ public class JarClassLoader extends ClassLoader implements IProperties {
                 // Try again with an unresolved name.
                 bytecode = (ByteCode)byteCode.get(resource);
             }
-            if (bytecode != null) result = new ByteArrayInputStream(bytecode.bytes);
+            if (bytecode != null) {
+                try {
+                    result = bytecode.getStream();
+                } catch (IOException iox) {
+                    WARNING("unable to read " + resource + ": " + iox);
+                }
+            }
     	}
     	
         // Contributed by SourceForge "ffrog_8" (with thanks, Pierce. T. Wetter III).
@@ -954,12 +1392,11 @@ public class JarClassLoader extends ClassLoader implements IProperties {
         if ($resource.startsWith("/")) $resource = $resource.substring(1);
         
         String resource = null;
-        String caller = getCaller();
-        ByteCode callerCode = (ByteCode)byteCode.get(caller);
+        String codebase = getCodeBase(getCallerClass());
         
-        if (callerCode != null) {
+        if (codebase != null) {
             // Jar-local first, then global.
-            String tmp = callerCode.codebase + "/" + $resource;
+            String tmp = codebase + "/" + $resource;
             if (byteCode.get(tmp) != null) {
                 resource = tmp; 
             } 
@@ -972,21 +1409,20 @@ public class JarClassLoader extends ClassLoader implements IProperties {
                 resource = $resource;
             }
         }
-        VERBOSE("resource " + $resource + " resolved to " + resource + (callerCode != null? " in codebase " + callerCode.codebase: " (unknown codebase)"));
+        VERBOSE("resource " + $resource + " resolved to " + resource + (codebase != null? " in codebase " + codebase: " (unknown codebase)"));
         return resource;
     }
     
-    protected boolean alreadyCached(String name, String jar, ByteArrayOutputStream baos) {
+    protected boolean alreadyCached(String name, String jar, ByteCode bytecode) {
         // TODO: check resource map to see how we will map requests for this
         // resource from this jar file.  Only a conflict if we are using a
         // global map and the resource is defined by more than
         // one jar file (default is to map to local jar).
         ByteCode existing = (ByteCode)byteCode.get(name);
         if (existing != null) {
-            byte[] bytes = baos.toByteArray();
             // If bytecodes are identical, no real problem.  Likewise if it's in
             // META-INF.
-            if (!Arrays.equals(existing.bytes, bytes) && !name.startsWith("META-INF")) {
+            if (!name.startsWith("META-INF") && !existing.sameBytes(bytecode)) {
                 // TODO: this really needs to be a warning, but there needs to be a way
                 // to shut it down.  INFO it for now.  Ideally we need to provide a 
                 // logging layer (like commons-logging) to allow logging to be delegated.
@@ -1000,34 +1436,45 @@ public class JarClassLoader extends ClassLoader implements IProperties {
             } else {
                 VERBOSE(existing.name + " in " + jar + " is hidden by " + existing.codebase + " (with same bytecode)");
             }
-            // Speedup GC.
-            bytes = null;
             return true;
         }
         return false;
     }
     
     
-    protected String getCaller() {
-        
-        // TODO: revisit caller determination.
-        /*
-        StackTraceElement[] stack = new Throwable().getStackTrace();
-        // Search upward until we get to a known class, i.e. one with a non-null
-        // codebase.  Skip anything in the com.simontuffs.onejar package to avoid
-        // classloader classes.
-        for (int i=0; i<stack.length; i++) {
-            String cls = stack[i].getClassName().replace(".","/") + ".class";
-            INFO("getCaller(): cls=" + cls);
-            if (byteCode.get(cls) != null) {
-                String caller = stack[i].getClassName();
-                if (!caller.startsWith("com.simontuffs.onejar")) {
-                    return cls;
-                }
-            }
+    protected static StackWalker callerWalker() {
+        try {
+            return StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+        } catch (SecurityException sx) {
+            // No jar-local resolution, resources resolve globally.
+            return null;
         }
-        */
-        return null;
+    }
+    
+    /**
+     * Find the nearest class on the stack which was loaded from one of our 
+     * jars, skipping the classloader machinery in between.  Only the top 
+     * callerDepth frames are examined, so this is cheap enough to do on
+     * every resource lookup.
+     */
+    protected Class getCallerClass() {
+        if (walker == null || callerDepth <= 0) return null;
+        return (Class)walker.walk(callerFinder);
+    }
+    
+    protected String getCaller() {
+        Class caller = getCallerClass();
+        return caller != null? caller.getName().replace('.', '/') + CLASS: null;
+    }
+    
+    /**
+     * The codebase (e.g. lib/foo.jar) a class was loaded from, or null if 
+     * it wasn't loaded from one of our jars.
+     */
+    protected String getCodeBase(Class cls) {
+        if (cls == null) return null;
+        String codebase = (String)codebases.get(cls);
+        return codebase.length() > 0? codebase: null;
     }
     
     /**
@@ -1053,6 +1500,21 @@ public class JarClassLoader extends ClassLoader implements IProperties {
         return record;
     }
     
+    public void setParentFirst(boolean $parentFirst) {
+        parentFirst = $parentFirst;
+        if (parentFirst) ownedPackages.clear();
+    }
+    public boolean isParentFirst() {
+        return parentFirst;
+    }
+    
+    public void setCompressed(boolean $compressed) {
+        compressed = $compressed;
+    }
+    public boolean isCompressed() {
+        return compressed;
+    }
+    
     public void setFlatten(boolean $flatten) {
         flatten = $flatten;
     }
@@ -1195,7 +1657,7 @@ public class JarClassLoader extends ClassLoader implements IProperties {
             if (resource != null) {
                 // We know how to handle it.
                 ByteCode entry = ((ByteCode) byteCode.get(resource));
-                INFO("findResource() found: \"" + $resource + "\" for caller " + getCaller() + " in codebase " + entry.codebase);                
+                if (info) INFO("findResource() found: \"" + $resource + "\" for caller " + getCaller() + " in codebase " + entry.codebase);
                 return urlFactory.getURL(entry.codebase, $resource);
             }
             INFO("findResource(): unable to locate \"" + $resource + "\"");
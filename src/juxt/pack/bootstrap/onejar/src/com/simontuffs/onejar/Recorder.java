@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2004-2010, P. Simon Tuffs (simon@simontuffs.com)
+ * All rights reserved.
+ *
+ * See the full license at http://one-jar.sourceforge.net/one-jar-license.html
+ * This license is also included in the distributions of this software
+ * under doc/one-jar-license.txt
+ */
+
+package com.simontuffs.onejar;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Records the classes used by an application (see one-jar.record) without
+ * doing any I/O on the class-loading path.  Classes are queued by
+ * {@link #record(String, byte[])} and written in batches by a background
+ * daemon thread, which is flushed when the VM shuts down.
+ * <p>
+ * If the recording name ends in .jar or .zip all classes are written into
+ * that single archive, otherwise each class is written as a file under the
+ * recording directory.  Either way the first class recorded under a name wins.
+ */
+public class Recorder implements Runnable {
+
+    public final static String THREAD_NAME = "one-jar-recorder";
+
+    // How long the writer waits for more classes before looking again.
+    protected final static long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    protected final String recording;
+    protected final boolean archive;
+    protected final Queue queue = new ConcurrentLinkedQueue();
+    protected final Set names = ConcurrentHashMap.newKeySet();
+    protected final Thread writer;
+    protected volatile boolean closed;
+
+    // Only touched by the writer thread.
+    protected final Set dirs = new HashSet();
+    protected ZipOutputStream zip;
+
+    public Recorder(String $recording) {
+        recording = $recording;
+        String lower = recording.toLowerCase();
+        archive = lower.endsWith(".jar") || lower.endsWith(".zip");
+        writer = new Thread(this, THREAD_NAME);
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, THREAD_NAME + "-shutdown"));
+    }
+
+    /**
+     * Queue a class for recording.  Never blocks: duplicates are dropped
+     * here, and everything else is left to the writer thread.
+     * @param name Path of the class within the recording, e.g. com/foo/Bar.class
+     * @param bytes The class bytes.
+     */
+    public void record(String name, byte[] bytes) {
+        while (name.startsWith("/")) name = name.substring(1);
+        if (closed || !names.add(name)) return;
+        queue.offer(new Object[]{name, bytes});
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Write out everything which has been queued, and stop the writer.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        List batch = new ArrayList();
+        while (true) {
+            Object item;
+            while ((item = queue.poll()) != null) {
+                batch.add(item);
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            } else if (closed) {
+                break;
+            } else {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+        if (zip != null) {
+            try {
+                zip.close();
+            } catch (IOException iox) {
+                Boot.WARNING("unable to close recording " + recording + ": " + iox);
+            }
+        }
+    }
+
+    protected void write(List batch) {
+        Boot.VERBOSE("recording " + batch.size() + " classes into " + recording);
+        for (int i=0; i<batch.size(); i++) {
+            Object[] item = (Object[])batch.get(i);
+            String name = (String)item[0];
+            byte[] bytes = (byte[])item[1];
+            try {
+                if (archive) {
+                    writeEntry(name, bytes);
+                } else {
+                    writeFile(name, bytes);
+                }
+            } catch (IOException iox) {
+                Boot.WARNING("unable to record " + name + " into " + recording + ": " + iox);
+            }
+        }
+        if (zip != null) {
+            try {
+                zip.flush();
+            } catch (IOException iox) {
+                Boot.WARNING("unable to flush recording " + recording + ": " + iox);
+            }
+        }
+    }
+
+    protected void writeEntry(String name, byte[] bytes) throws IOException {
+        if (zip == null) {
+            File file = new File(recording);
+            if (file.getParentFile() != null) file.getParentFile().mkdirs();
+            zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(bytes);
+        zip.closeEntry();
+    }
+
+    protected void writeFile(String name, byte[] bytes) throws IOException {
+        File file = new File(recording, name);
+        // Never overwrite an existing recording.
+        if (file.exists()) return;
+        File parent = file.getParentFile();
+        if (dirs.add(parent)) parent.mkdirs();
+        Boot.VERBOSE("" + file);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(bytes);
+        } finally {
+            fos.close();
+        }
+    }
+
+}
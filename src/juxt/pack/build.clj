@@ -0,0 +1,43 @@
+(ns ^:no-doc juxt.pack.build
+  (:require
+    [juxt.pack.impl.inventory :as inventory]
+    [juxt.pack.impl.vfs :as vfs])
+  (:import
+    [java.util.concurrent ExecutionException]))
+
+(def ^:private writers
+  {:skinny 'juxt.pack.skinny/skinny
+   :library 'juxt.pack.library/library
+   :one-jar 'juxt.pack.one-jar/one-jar
+   :aws-lambda 'juxt.pack.aws-lambda/aws-lambda
+   :docker 'juxt.pack.jib/jib})
+
+(defn- writer
+  [{:keys [type] :as artifact}]
+  (or (some-> (get writers type) requiring-resolve)
+      (throw (ex-info (str "Unknown artifact type " type) {:artifact artifact}))))
+
+(defn build
+  [{:keys [basis artifacts] :as params}]
+  (let [output (vfs/share-open-files (select-keys params vfs/output-options))
+        ;; Check the types before scanning anything
+        writers (mapv writer artifacts)
+        basis (inventory/inventory basis)]
+    (try
+      (let [results (mapv (fn [write artifact]
+                            (future
+                              (write (merge output
+                                            (dissoc artifact :type)
+                                            {:basis basis}))))
+                          writers
+                          artifacts)]
+        ;; Wait for every artifact before the shared jars are deleted, even
+        ;; when one of them fails
+        (run! #(try @% (catch Throwable _)) results)
+        (mapv #(try
+                 @%
+                 (catch ExecutionException e
+                   (throw (.getCause e))))
+              results))
+      (finally
+        (inventory/close basis)))))
@@ -26,13 +26,43 @@
     :layers - ordered coll of:
                 :paths - built-in layer, paths from basis
                 :libs - built-in layer, libs from basis
+                :release-libs - built-in layer, maven libs with a release
+                                version
+                :snapshot-libs - built-in layer, snapshot, local and git libs
+                :resources - built-in layer, files in paths other than classes
+                :classes - built-in layer, class files in paths
               default = [:libs :paths]
+    :lib-layer-size - libs of at least this many bytes get a layer each, just
+                      before that of the other libs, so they're only pushed
+                      again when they change, default = nil
     :platforms - optional, a set of keywords of the form :<os>/<architecture>
                  e.g. #{:linux/amd64 :linux/arm64}
     :entrypoint - ordered coll to use as command to run, defaults to running your program
+    :cds - true or a map, to add a class data sharing archive, which speeds up
+           startup, as a layer of its own and use it in the entrypoint.  It's
+           made by running your program locally, on a copy of the image's
+           classpath, with :paths and directory libs as jars.  The java it's
+           made with must be the same build as the image's, so it needs
+           :jlink, or :base-image and the :java of the same build.  Map of:
+             :args - args to clojure.main for the training run, which must
+                     exit, default = :main-opts of basis
+             :java - java to run, default = java, or the :jlink runtime
+           default = nil
 
     Runtime:
-    :base-image - base docker image to use, default = gcr.io/distroless/java:11
+    :jlink - true or a map, to add a Java runtime of only the modules your
+             program uses, made with jlink from the local JDK, as a layer of
+             its own at /opt/java, and run it in the entrypoint.  It's made for
+             the local platform, so build on the image's platform: any other
+             in :platforms (default linux/amd64) is an error.  The modules
+             are found with jdeps.  Map of:
+               :modules - modules to use instead of those jdeps finds
+               :add-modules - modules to add, e.g. ones loaded by reflection
+                              like jdk.crypto.ec or jdk.localedata
+             default = nil
+    :base-image - base docker image to use, default =
+                  gcr.io/distroless/java:11, or
+                  gcr.io/distroless/java-base-debian12 with :jlink
     :user - user to run the container as, string in format of user, uid, :group,
             :gid, user:group, uid:gid, uid:group, user:gid
 
@@ -46,12 +76,32 @@
 
     Repeatability:
     :creation-time - java.time.Instant to set creation time of image to, default = (Instant/now)
+
+    Build:
+    :executor - ExecutorService for Jib to run its steps on, default = one of
+                Jib's own.  Jib's steps wait on steps they submit, so a
+                fixed size pool can deadlock; it should be able to grow,
+                like Executors/newCachedThreadPool
+    :base-image-cache - directory to cache base image layers in, default =
+                        Jib's in ~/.cache
+    :application-cache - directory to cache the image's own layers in, so
+                         unchanged layers aren't built again, default = a
+                         new temporary directory each time
    
   Image types:
     :docker - Upload to docker daemon
     :registry - Upload to a registry, uses :to-registry if set,
                 otherwise ~/.docker/config.json
-    :tar - Write a tar file, requires :tar-file to be set"
+    :tar - Write a tar file, requires :tar-file to be set
+
+  Returns a map of :image-digest, :image-id, :tags, the Jib :container, and
+  :timings, of where the time went:
+    {:timers [{:description, :nanos, :children}],
+     :progress [{:description, :allocations, :allocation-units, :units, :nanos}],
+     :nanos}
+  :timers are Jib's steps, e.g. building (hashing and compressing) a layer or
+  pushing a blob, and :progress the time from the first to the last progress
+  of each kind of work."
   [{:keys [basis] :as params}]
   (pack/docker (assoc params :basis (or basis (create-basis nil)))))
 
@@ -67,10 +117,47 @@
     :path - location to output :paths to, if not supplied :paths aren't output,
             default = nil
     :path-coerce - nil or :jar. :jar will output a jar file to :path instead of
-                   a directory, default = nil"
+                   a directory, default = nil
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc
+    :sync - if true, files which are unchanged since the last run are left
+            as they are instead of being copied again, and files which
+            were output before but aren't any more are deleted.  Files
+            pack didn't write are never touched.  Maven and git libs are
+            hard linked rather than copied where the file system allows,
+            default = false
+    :cds - map, to make a class data sharing archive, which speeds up
+           startup, by running your program on the output.  Needs :path and
+           :libs, with :path-coerce and :lib-coerce :jar.  A java @-file to
+           run it with the archive and the same classpath is written to
+           <file>.args, use as `java @<file>.args`.  Map of:
+             :file - required, archive to create
+             :args - args to clojure.main for the training run, which must
+                     exit, default = :main-opts of basis
+             :java - java to run, default = java
+           default = nil"
   [{:keys [basis] :as params}]
   (pack/skinny (assoc params :basis (or basis (create-basis nil)))))
 
+(defn skinny-watch
+  "Output :paths like skinny, then keep the output up to date as files under
+  them change.  Changes are batched until there have been none for 50ms.  A
+  directory only has the changed files copied or deleted, and a jar is
+  rewritten reusing the compressed entries of unchanged files.
+
+  Runs until the process is stopped.
+
+  Options
+    :basis - basis to use, if not provided will create a basis without :user
+    :path - required, location to output :paths to
+    :path-coerce - nil or :jar. :jar will output a jar file to :path instead of
+                   a directory, default = nil
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc"
+  [{:keys [basis] :as params}]
+  (pack/skinny-watch (assoc params :basis (or basis (create-basis nil))))
+  @(promise))
+
 (defn library
   "Produce a library from :paths in a basis
   
@@ -79,7 +166,9 @@
     :path - required, location to output library to
     :pom - input pom.xml, if provided will be copied to
            META-INF/maven/<group>/<artifact>/pom.xml
-    :lib - required if :pom supplied, used to create pom.xml path"
+    :lib - required if :pom supplied, used to create pom.xml path
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc"
   [{:keys [basis] :as params}]
   (pack/library (assoc params :basis (or basis (create-basis nil)))))
 
@@ -93,7 +182,13 @@
   
   Options
     :basis - basis to use, if not provided will create a basis without :user
-    :lambda-file - required, lambda file to create"
+    :lambda-file - required, lambda file to create
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc
+    :incremental - if true, libs and files unchanged since the last
+                   incremental build of :lambda-file are copied from it
+                   instead of being rebuilt.  Input fingerprints are kept in
+                   <lambda-file>.inputs.edn, default = false"
   [{:keys [basis] :as params}]
   (pack/aws-lambda (assoc params :basis (or basis (create-basis nil)))))
 
@@ -110,6 +205,8 @@
     - This may be replaced with Uno-Jar in the future
     - Classpath scanning mechanisms don't work with One-Jar, as it uses a
       custom URL scheme.
+    - The One-Jar bootstrap is compiled from source with javac the first time
+      it's needed, and then cached, so that first build must run on a JDK.
 
   Options
     :basis - basis to use, if not provided will create a basis without :user
@@ -117,6 +214,29 @@
     :main-class - main class to run jar with default = clojure.main, changing
                   this requires the use of aot and is considered more advanced.
                   Prefer setting :main-opts in your basis and using
-                  clojure.main to load your main."
+                  clojure.main to load your main.
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc
+    :incremental - if true, libs and paths unchanged since the last
+                   incremental build of :jar-file are copied from it instead
+                   of being rebuilt.  Input fingerprints are kept in
+                   <jar-file>.inputs.edn, default = false"
   [{:keys [basis] :as params}]
   (pack/one-jar (assoc params :basis (or basis (create-basis nil)))))
+
+(defn build
+  "Build several artifacts from one basis, sharing one scan of its inputs.
+  Classpath roots are classified and their directories walked once, and each
+  directory converted to a jar (for one-jar, aws-lambda and a :lib-coerce :jar
+  skinny) at most once, then the artifacts are all written concurrently.
+
+  Options
+    :basis - basis to use, if not provided will create a basis without :user
+    :artifacts - required, coll of maps, each with the options of one artifact
+                 apart from :basis, and a :type, one of :skinny :library
+                 :one-jar :aws-lambda or :docker
+    :parallelism, :reproducible, :compression, :max-open-files, :listener -
+      see Output options in the juxt.pack.api namespace doc.  Used for the
+      converted jars and as the default for every artifact"
+  [{:keys [basis] :as params}]
+  (pack/build (assoc params :basis (or basis (create-basis nil)))))
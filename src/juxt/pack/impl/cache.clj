@@ -0,0 +1,68 @@
+(ns juxt.pack.impl.cache
+  "Files kept across builds in the user's cache directory,
+  $XDG_CACHE_HOME/juxt-pack or ~/.cache/juxt-pack.  Entries are named by a
+  hash of everything that goes into them, so they're never updated, only
+  created.  Things which change in place, like a local lib, keep just their
+  latest entry (see cached-latest)."
+  (:require
+    [clojure.java.io :as io]
+    [me.raynes.fs :as fs])
+  (:import
+    [java.nio.charset StandardCharsets]
+    [java.nio.file CopyOption DirectoryNotEmptyException FileAlreadyExistsException Files LinkOption Path StandardCopyOption]
+    [java.nio.file.attribute FileAttribute]
+    [java.security MessageDigest]))
+
+(defn digest
+  "Hex SHA-256 of strs."
+  [strs]
+  (let [md (MessageDigest/getInstance "SHA-256")]
+    (doseq [^String s strs]
+      (.update md (.getBytes s StandardCharsets/UTF_8))
+      (.update md (byte 0)))
+    (format "%064x" (BigInteger. 1 (.digest md)))))
+
+(defn cache-dir
+  ^java.io.File [& more]
+  (apply io/file
+         (or (System/getenv "XDG_CACHE_HOME")
+             (io/file (System/getProperty "user.home") ".cache"))
+         "juxt-pack"
+         more))
+
+(defn cached
+  "The Path of name in the cache's kind directory, calling (create tmp) to make
+  it first if it isn't there.  create writes the file or directory tmp, which
+  is then moved into place, so a concurrent or interrupted build never leaves
+  a partial entry behind.  Throws an IOException if the cache isn't
+  writable."
+  ^Path [kind name create]
+  (let [target (.toPath (cache-dir kind name))]
+    (when-not (Files/exists target (make-array LinkOption 0))
+      (let [parent (.getParent target)
+            _ (Files/createDirectories parent (make-array FileAttribute 0))
+            tmp-dir (Files/createTempDirectory parent ".tmp-" (make-array FileAttribute 0))
+            tmp (.resolve tmp-dir ^String name)]
+        (try
+          (create tmp)
+          (try
+            (Files/move tmp target (into-array CopyOption [StandardCopyOption/ATOMIC_MOVE]))
+            ;; Somebody else got there first, theirs is just as good.
+            (catch FileAlreadyExistsException _)
+            (catch DirectoryNotEmptyException _))
+          (finally
+            (fs/delete-dir (.toFile tmp-dir))))))
+    target))
+
+(defn cached-latest
+  "As cached, but name is the only entry kept in kind, the others are deleted
+  once it's there.  For entries which are replaced rather than added to, like
+  the jar of a lib whose files are edited, which would otherwise pile up."
+  ^Path [kind name create]
+  (let [target (cached kind name create)]
+    (doseq [^java.io.File f (.listFiles (cache-dir kind))
+            :let [other (.getName f)]
+            ;; Leave other builds' entries in progress alone
+            :when (and (not= name other) (not (.startsWith other ".tmp-")))]
+      (Files/deleteIfExists (.toPath f)))
+    target))
@@ -0,0 +1,60 @@
+(ns juxt.pack.impl.cds
+  "Class data sharing archives, made by a training run of the app.
+
+  The JVM only uses an archive with the same classpath, as relative paths
+  resolve to the same files, and the same size and modification time for
+  every jar on it.  It must also be the same JVM build as trained it."
+  (:require
+    [clojure.java.io :as io]
+    [clojure.string :as string])
+  (:import
+    [java.io File]))
+
+(defn java-args
+  "Arguments to java to run clojure.main with basis' :jvm-opts and args, on
+  classpath.  Its entries are joined with path-separator, default = that of
+  this JVM, so pass \":\" for a java in a Linux image."
+  ([basis classpath args]
+   (java-args basis classpath args File/pathSeparator))
+  ([basis classpath args path-separator]
+   (concat
+     ;; Early in case users override in :jvm-opts
+     ["-Dclojure.main.report=stderr"
+      "-Dfile.encoding=UTF-8"]
+     (-> basis :argmap :jvm-opts)
+     ["-cp" (string/join path-separator classpath)
+      "clojure.main"]
+     args)))
+
+(defn train
+  "Run the app in dir, with java args, and write the classes it loads to
+  archive when it exits.  :args of opts replace the :main-opts of basis, e.g.
+  to run a task which exercises the app and exits.  :java is the java to run,
+  default = java."
+  [basis classpath archive dir opts]
+  (let [archive (.getAbsoluteFile (io/file archive))
+        command (concat [(or (:java opts) "java")
+                         (str "-XX:ArchiveClassesAtExit=" archive)]
+                        (java-args basis
+                                   classpath
+                                   (or (:args opts) (-> basis :argmap :main-opts))))
+        process (-> (ProcessBuilder. ^java.util.List (vec command))
+                    (.directory (io/file dir))
+                    (.inheritIO)
+                    (.start))
+        exit (.waitFor process)]
+    (when-not (and (zero? exit) (.exists archive))
+      (throw (ex-info "CDS training run failed" {:command command
+                                                 :exit exit})))
+    archive))
+
+(defn write-args-file
+  "Write the arguments to run the app with archive, as train ran it, to a java
+  @-file."
+  [file basis classpath archive]
+  (spit file
+        (string/join
+          "\n"
+          (map #(str \" (string/escape % {\\ "\\\\" \" "\\\""}) \")
+               (cons (str "-XX:SharedArchiveFile=" archive)
+                     (java-args basis classpath (-> basis :argmap :main-opts)))))))
@@ -17,7 +17,7 @@
   (str (paths-get path-seq)))
 
 (defn path->path-seq
-  [path]
+  [^java.nio.file.Path path]
   (->> path
        .iterator
        iterator-seq
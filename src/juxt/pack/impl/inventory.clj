@@ -0,0 +1,199 @@
+(ns juxt.pack.impl.inventory
+  "A shared scan of the inputs of a basis, so that several artifacts can be
+  built from one read of them.
+
+  The inventory is kept on the basis, and the functions here fall back to
+  scanning the file system themselves for a basis without one."
+  (:require
+    [clojure.java.io :as io]
+    [clojure.string :as string]
+    [clojure.tools.deps.util.dir :refer [canonicalize]]
+    [juxt.pack.impl.cache :as cache]
+    [juxt.pack.impl.lib-map :as lib-map]
+    [juxt.pack.impl.vfs :as vfs]
+    [me.raynes.fs :as fs])
+  (:import
+    [java.nio.file Files]
+    [java.nio.file.attribute FileAttribute]
+    [java.security MessageDigest]
+    [java.util.concurrent ConcurrentHashMap]
+    [java.util.function Function]))
+
+(defn- root-key
+  [root]
+  (.getPath ^java.io.File (canonicalize (io/file root))))
+
+(defn- write-jar
+  [output dir-paths file]
+  (vfs/write-vfs (-> output
+                     ;; Shared jars aren't outputs of any one artifact
+                     (dissoc :listener)
+                     (assoc :type :jar
+                            :stream (io/output-stream file)))
+                 dir-paths)
+  file)
+
+(defn- build-jar
+  [tmp-dir output dir-paths]
+  (write-jar output
+             dir-paths
+             (.toFile (Files/createTempFile tmp-dir "dir-" ".jar" (make-array FileAttribute 0)))))
+
+;; Lib jar cache
+
+(defn- lib-coordinate
+  "The lib whose path dir is, from the classpath of basis."
+  [basis dir]
+  (let [k (root-key dir)]
+    (some (fn [[root {:keys [lib-name]}]]
+            (when (and lib-name (= k (root-key root)))
+              (assoc (get-in basis [:libs lib-name]) :lib lib-name)))
+          (:classpath basis))))
+
+(def ^:private jar-options
+  "Output options which change the bytes of a jar."
+  [:reproducible :compression])
+
+(defn- file-hash
+  [file]
+  (let [md (MessageDigest/getInstance "SHA-256")
+        buf (byte-array 8192)]
+    (with-open [in (io/input-stream file)]
+      (loop []
+        (let [n (.read in buf)]
+          (when (pos? n)
+            (.update md buf 0 n)
+            (recur)))))
+    (format "%064x" (BigInteger. 1 (.digest md)))))
+
+(defn- content-hash
+  "Hash of the path and content of every file in dir-paths."
+  [dir-paths]
+  (cache/digest (mapcat (fn [{:keys [path file]}]
+                          [(string/join "/" path) (file-hash file)])
+                        dir-paths)))
+
+(defn- lib-jar-key
+  "Cache entry of the jar of dir, if it's a lib, as {:key, :slot}.  A gitlib is
+  immutable for its :git/sha, so it's keyed by that and dir's path in the
+  checkout.  Other libs are keyed by the path and content of every file, so
+  touching a file or restoring it from a checkout doesn't rebuild the jar.  As
+  that changes with every edit, they also have a :slot, of the lib, dir and
+  options, which keeps only the latest."
+  [basis output dir dir-paths]
+  (when-let [{:keys [lib] :as coordinate} (lib-coordinate basis dir)]
+    (let [options (pr-str (select-keys output jar-options))]
+      (if-let [sha (and (:deps/root coordinate) (:git/sha coordinate))]
+        {:key (cache/digest ["git" (str lib) sha
+                             (str (.relativize (.toPath ^java.io.File (canonicalize (io/file (:deps/root coordinate))))
+                                               (.toPath ^java.io.File (canonicalize (io/file dir)))))
+                             options])}
+        {:key (cache/digest ["tree" (str lib) options (content-hash dir-paths)])
+         :slot (cache/digest ["tree" (str lib) (root-key dir) options])}))))
+
+(defn- lib-jar
+  "The jar of dir from the cache, made first if it isn't there."
+  [{:keys [key slot]} output dir-paths]
+  (try
+    (let [create #(write-jar output dir-paths (.toFile ^java.nio.file.Path %))]
+      (.toFile (if slot
+                 (cache/cached-latest (str "jars/" slot) (str key ".jar") create)
+                 (cache/cached "jars" (str key ".jar") create))))
+    ;; An unwritable cache shouldn't fail the build
+    (catch java.io.IOException _
+      (write-jar output
+                 dir-paths
+                 (doto (java.io.File/createTempFile "pack-lib" ".jar")
+                   (.deleteOnExit))))))
+
+;; Inventory
+
+(defn- shared-jar
+  "Delays of the :fingerprint and :jar of dir, written with the options of
+  output."
+  [basis tmp-dir output dir dir-paths]
+  (let [entry (delay (lib-jar-key basis output dir dir-paths))]
+    {:fingerprint (delay (or (:key @entry) (vfs/fingerprint {:paths dir-paths})))
+     :jar (delay (if @entry
+                   (lib-jar @entry output dir-paths)
+                   (build-jar tmp-dir output dir-paths)))}))
+
+(defn- scan-root
+  [root]
+  (let [kind (lib-map/classify root)]
+    (if (= :dir kind)
+      ;; Walked straight away, so that all the roots are walked in parallel
+      {:kind kind
+       :paths (vfs/dir-path (canonicalize (io/file root)))
+       ;; Shared jars, by their jar-options, as artifacts may differ
+       :jars (ConcurrentHashMap.)}
+      {:kind kind})))
+
+(defn inventory
+  "Scan every classpath root of basis, and return basis with the inventory.
+  Directories are walked once, and converted to a jar the first time one is
+  needed with the output options of an artifact.  The jars are kept until
+  close, or for libs, in the cache."
+  [basis]
+  (let [tmp-dir (Files/createTempDirectory "pack-inventory" (make-array FileAttribute 0))]
+    (assoc basis
+           ::tmp-dir tmp-dir
+           ::roots
+           (into {}
+                 (map (juxt root-key scan-root))
+                 (distinct
+                   (concat (:classpath-roots basis)
+                           (keys (:classpath basis))))))))
+
+(defn close
+  "Delete the jars made for basis' inventory."
+  [basis]
+  (some-> ^java.nio.file.Path (::tmp-dir basis) .toFile fs/delete-dir))
+
+(defn inventory?
+  [basis]
+  (contains? basis ::roots))
+
+(defn- scanned
+  [basis root]
+  (get (::roots basis) (root-key root)))
+
+(defn classify
+  "As lib-map/classify, from the inventory of basis if it has one."
+  [basis root]
+  (if-let [entry (scanned basis root)]
+    (:kind entry)
+    (lib-map/classify root)))
+
+(defn dir-path
+  "As vfs/dir-path, from the inventory of basis if it has one."
+  [basis dir]
+  (or (:paths (scanned basis dir))
+      (vfs/dir-path dir)))
+
+(defn dir-jar
+  "A node for dir as a jar, which needs a :path.  With an inventory, the jar is
+  made once and shared by every artifact with the same jar-options.  Jars of
+  libs are kept in the cache (see juxt.pack.impl.cache) and shared by every
+  build.  Otherwise, it's a nested archive of the files under dir.  output has
+  the options the jar is written with."
+  [basis output dir]
+  (let [{:keys [paths ^ConcurrentHashMap jars]} (scanned basis dir)]
+    (if jars
+      (let [{:keys [jar fingerprint]}
+            (.computeIfAbsent jars
+                              (select-keys output jar-options)
+                              (reify Function
+                                (apply [_ _]
+                                  (shared-jar basis (::tmp-dir basis) output dir paths))))]
+        {:prepare #(deref jar)
+         :input #(io/input-stream @jar)
+         ;; Incremental builds can skip the jar when this hasn't changed
+         :fingerprint @fingerprint})
+      (let [dir-paths (vfs/dir-path dir)]
+        (if-let [entry (lib-jar-key basis output dir dir-paths)]
+          (let [jar (delay (lib-jar entry output dir-paths))]
+            {:prepare #(deref jar)
+             :input #(io/input-stream @jar)
+             :fingerprint (:key entry)})
+          {:paths dir-paths})))))
@@ -0,0 +1,98 @@
+(ns juxt.pack.impl.jlink
+  "Minimal Java runtimes, made with jdeps and jlink from the JDK running the
+  build."
+  (:require
+    [clojure.java.io :as io]
+    [clojure.string :as string])
+  (:import
+    [java.io PrintWriter StringWriter]
+    [java.util.spi ToolProvider]))
+
+(defn- run-tool
+  "Run the JDK tool called name in process, and return what it printed."
+  [^String name args]
+  (let [^ToolProvider tool (or (.orElse (ToolProvider/findFirst name) nil)
+                               (throw (ex-info (str name " is not available, please make sure you use a JDK")
+                                               {:tool name})))
+        out (StringWriter.)
+        err (StringWriter.)
+        exit (.run tool (PrintWriter. out) (PrintWriter. err) ^"[Ljava.lang.String;" (into-array String args))]
+    (when-not (zero? exit)
+      ;; jlink reports errors on out
+      (throw (ex-info (str name " failed: " err out) {:tool name
+                                                      :args args
+                                                      :exit exit})))
+    (str out)))
+
+(defn- feature-version
+  []
+  (.feature (Runtime/version)))
+
+(defn module-deps
+  "The JDK modules that the classes in roots, jars or directories, use."
+  [roots]
+  (let [out (run-tool "jdeps"
+                      (concat ["--print-module-deps"
+                               "--ignore-missing-deps"
+                               "-q"
+                               "--multi-release" (str (feature-version))]
+                              (map str roots)))]
+    (remove string/blank? (string/split (string/trim out) #","))))
+
+(defn- dump-default-archive
+  "Write the default CDS archive of runtime, as --generate-cds-archive does
+  where jlink has it (from 19)."
+  [runtime]
+  (let [command [(str (io/file runtime "bin" "java")) "-Xshare:dump"]
+        process (-> (ProcessBuilder. ^java.util.List command)
+                    (.redirectErrorStream true)
+                    (.start))
+        out (slurp (.getInputStream process))
+        exit (.waitFor process)]
+    (when-not (zero? exit)
+      (throw (ex-info (str "CDS dump failed: " out) {:command command
+                                                     :exit exit})))))
+
+(defn- host-platform
+  "The platform of the JDK running the build, as :<os>/<architecture> in
+  docker's terms."
+  []
+  (let [os (string/lower-case (System/getProperty "os.name"))
+        arch (System/getProperty "os.arch")]
+    (keyword (cond
+               (string/starts-with? os "linux") "linux"
+               (string/starts-with? os "mac") "darwin"
+               (string/starts-with? os "windows") "windows"
+               :else os)
+             (case arch
+               ("amd64" "x86_64") "amd64"
+               ("aarch64" "arm64") "arm64"
+               arch))))
+
+(defn check-platforms
+  "Throw unless each of platforms, keywords of the form :<os>/<architecture>,
+  is the build's own, as jlink only makes runtimes for the JDK it's part of."
+  [platforms]
+  (let [host (host-platform)]
+    (when-let [others (seq (remove #{host} platforms))]
+      (throw (ex-info (str "jlink can only make a runtime for " (namespace host) "/" (name host)
+                           ", not " (string/join ", " (map #(str (namespace %) "/" (name %)) others))
+                           ", build on the image's platform or use a base image with a JRE")
+                      {:host host
+                       :platforms platforms})))))
+
+(defn runtime
+  "Make a runtime with modules in dir, which mustn't exist, as small as jlink
+  can.  With cds?, it has the default CDS archive of the JDK classes, which a
+  dynamic archive is made on top of."
+  [dir modules cds?]
+  (run-tool "jlink"
+            ["--add-modules" (string/join "," modules)
+             "--strip-debug"
+             "--no-header-files"
+             "--no-man-pages"
+             "--compress" (if (>= (feature-version) 21) "zip-6" "2")
+             "--output" (str (io/file dir))])
+  (when cds?
+    (dump-default-archive dir))
+  (io/file dir))
@@ -1,15 +1,21 @@
 (ns juxt.pack.impl.vfs
   (:require
+    [clojure.edn :as edn]
     [clojure.java.io :as io]
-    [clojure.walk :refer [postwalk]]
     [clojure.string :as string]
+    [juxt.pack.impl.cache :as cache]
     [juxt.pack.impl.elodin
      :refer [path-seq->str
              path->path-seq]
-     :as elodin])
+     :as elodin]
+    [juxt.pack.impl.zip :as zip])
   (:import
-    [java.util.jar JarEntry JarOutputStream Manifest Attributes$Name]
-    [java.util.zip ZipEntry ZipOutputStream]))
+    [java.nio.file CopyOption FileSystemLoopException FileVisitOption FileVisitResult Files LinkOption Path SimpleFileVisitor StandardCopyOption]
+    [java.nio.file.attribute BasicFileAttributes]
+    [java.util.concurrent Callable CompletableFuture CompletionException ExecutionException ExecutorService Executors Future Semaphore ThreadFactory ThreadPoolExecutor]
+    [java.util.concurrent.atomic LongAdder]
+    [java.util.function Function]
+    [java.util.jar JarFile Manifest Attributes$Name]))
 
 (defn- post-order-tree-seq
   [branch? children root]
@@ -28,88 +34,6 @@
                    [n])))]
     (walk root)))
 
-(defn- tree-height
-  [branch? children root]
-  (let [walk (fn walk [n height]
-               (if (branch? n)
-                 (apply max
-                        (inc height)
-                        (map walk
-                             (children n)
-                             (repeat (inc height))))
-                 height))]
-    (walk root 0)))
-
-(defn- process-tree
-  [branch? children f root]
-  (let [walk (fn walk [n height]
-               (if (branch? n)
-                 (f n
-                    (mapv walk (children n) (repeat (inc height)))
-                    height)
-                 (f n nil height)))]
-    (walk root 0)))
-
-(defn- create-thread
-  [name f]
-  (let [t (doto (Thread. f)
-            (.setName name)
-            (.setDaemon false)
-            (.start))]
-    t))
-
-(defn- process-height
-  [height f]
-  (let [in (java.util.concurrent.LinkedBlockingQueue.)]
-    {:t (create-thread (str "process-height-" height)
-                       (fn []
-                         (loop [x (.take in)]
-                           (when (not= x ::end)
-                             (f x)
-                             (recur (.take in))))))
-     :in in}))
-
-(defn- iterate-tree
-  [branch? children processors g]
-  (process-tree branch? children
-                (fn [node children height]
-                  (.put (:in (get processors height))
-                        {:node node
-                         :children children
-                         :height height})
-                  node)
-                g))
-
-(defn- create-processors
-  [tree-height f]
-  (mapv #(process-height % f) (range (inc tree-height))))
-
-(defn- stop-processors
-  [processors]
-  (doseq [p processors]
-    (.put (:in p) ::end))
-  (doseq [p processors]
-    (.join (:t p))))
-
-(defn- write! [stream in]
-  (let [buf (byte-array 1024)]
-    (with-open [in in]
-      (loop [n (.read in buf)]
-        (when-not (= -1 n)
-          (.write stream buf 0 n)
-          (recur (.read in buf)))))))
-
-(defn- add-output
-  [path]
-  (if (:paths path)
-    (let [out (java.io.PipedOutputStream.)
-          in (java.io.PipedInputStream. out)]
-      (assoc path
-             :input in
-             :output {:stream out
-                      :type :jar}))
-    path))
-
 (def ^:private path? map?)
 
 (defmulti write-output
@@ -119,13 +43,7 @@
 
 (defn- prepare-path
   [path]
-  (string/join "/" (map #(string/replace % #"\\" "/") path)))
-
-(defn set-last-modified
-  [entry last-modified]
-  (if last-modified
-    (doto entry (.setTime last-modified))
-    entry))
+  (string/join "/" (map #(.replace ^String % "\\" "/") path)))
 
 (defn- create-manifest [main ext-attrs]
   (let [manifest (Manifest.)]
@@ -137,105 +55,781 @@
         (.put attributes (Attributes$Name. (name k)) v)))
     manifest))
 
+(defn- manifest-bytes
+  [manifest]
+  (let [out (java.io.ByteArrayOutputStream.)]
+    (.write ^Manifest manifest out)
+    (.toByteArray out)))
+
+(def reproducible-epoch
+  "The time of every entry in reproducible mode, 1980-02-01T00:00:00Z.  This is
+  the earliest time which every zip tool reads back the same way."
+  (.toEpochMilli (java.time.Instant/parse "1980-02-01T00:00:00Z")))
+
+(def ^:private file-mode 0100644)
+(def ^:private dir-mode 040755)
+
 (defn- create-parents
-  [out path-seq]
-  (doseq [parent (elodin/path-seq-parents path-seq)
-          ;; Add trailing "/", as some zip implementations require that for
-          ;; directory detection.
-          :let [dir (str (prepare-path parent) "/")]]
+  "Write the directories above path-seq which aren't in dirs yet, outermost
+  first, adding them to dirs.  As a directory is only ever added after its
+  parent, no more are looked at once one is found in dirs."
+  [w ^java.util.Set dirs path-seq time mode]
+  (doseq [dir (->> (elodin/path-seq-parents path-seq)
+                   ;; Add trailing "/", as some zip implementations require
+                   ;; that for directory detection.
+                   (map #(str (prepare-path %) "/"))
+                   (take-while #(not (.contains dirs %)))
+                   (reverse))]
+    (.add dirs dir)
+    (zip/write-directory w dir time :mode mode)))
+
+(defn- deref-future
+  [^Future f]
+  (try
+    (.get f)
+    (catch ExecutionException e
+      (throw (.getCause e)))))
+
+(defn- run-ordered
+  "Calls f with each item of coll on executor, with at most window items in
+  flight, and then consume with each item, its result and the number of items
+  still in flight, in the order of coll.  discard is called with the results
+  which were never consumed if anything fails."
+  [^ExecutorService executor window f consume discard coll]
+  (let [pending (java.util.ArrayDeque.)]
     (try
-      (.putNextEntry out (ZipEntry. dir))
-      (catch java.util.zip.ZipException e
-        ;; Ignore duplicate entry exceptions
-        (when-not (re-matches #"duplicate entry:.*" (.getMessage e))
-          (throw e)))
+      (loop [xs (seq coll)]
+        (cond
+          (and xs (< (.size pending) window))
+          (let [x (first xs)]
+            (.add pending [x (.submit executor ^Callable (fn [] (f x)))])
+            (recur (next xs)))
+
+          (.isEmpty pending)
+          nil
+
+          :else
+          (let [[x fut] (.poll pending)]
+            (consume x (deref-future fut) (.size pending))
+            (recur xs))))
+      (catch Throwable t
+        (doseq [[_ ^Future fut] pending]
+          (when-not (.cancel fut true)
+            (try (discard (deref-future fut)) (catch Throwable _))))
+        (throw t)))))
+
+(defn- child-input
+  "The :input of child (calling it if it's an opener), or its :file or :raw
+  entry opened."
+  ^java.io.InputStream [{:keys [input file raw]}]
+  (cond
+    (fn? input) (input)
+    input input
+    file (Files/newInputStream (.toPath (io/file file)) (make-array java.nio.file.OpenOption 0))
+    raw (zip/raw-input (:file raw) (:entry raw))
+    :else (throw (NullPointerException. "path has no input"))))
+
+(def incompressible-extensions
+  "Extensions of files which are already compressed, for the :store of a
+  :compression policy."
+  #{"jar" "zip" "war" "gz" "tgz" "bz2" "xz" "zst" "7z" "br"
+    "png" "jpg" "jpeg" "gif" "webp" "woff" "woff2" "mp3" "mp4"})
+
+(defn- extension
+  [path-seq]
+  (let [name (last path-seq)
+        i (string/last-index-of name ".")]
+    (when i
+      (string/lower-case (subs name (inc i))))))
+
+(defn- compression-policy
+  "The :compression of an output, with :store as a set of lower case
+  extensions, whatever collection it was given as (e.g. a vector from the
+  command line)."
+  [compression]
+  (cond-> compression
+    (:store compression)
+    (update :store #(if (= :default %)
+                      incompressible-extensions
+                      (into #{} (map (comp string/lower-case name)) %)))))
+
+(defn- compress
+  "Compress in as policy (see compression-policy) says.  Returns an entry as for zip/deflate."
+  [in path-seq {:keys [level store sniff min-savings]}]
+  (let [opts (cond-> {} level (assoc :level level))
+        in (java.io.BufferedInputStream. in)]
+    (cond
+      (or (contains? store (extension path-seq))
+          (and sniff (zip/compressed-content? in)))
+      (zip/store in opts)
+
+      min-savings
+      (let [{stored :data :as entry} (zip/store in opts)
+            {deflated :data :as deflated-entry}
+            (try
+              (zip/deflate (zip/spool-input stored) opts)
+              (catch Throwable t
+                (zip/delete-spool stored)
+                (throw t)))]
+        (if (< (- (:size entry) (:compressed-size deflated-entry))
+               (* min-savings (:size entry)))
+          (do (zip/delete-spool deflated) entry)
+          (do (zip/delete-spool stored) deflated-entry)))
+
+      :else
+      (zip/deflate in opts))))
+
+;; Instrumentation
+
+(def ^:private metric-keys
+  [:entries :archives :bytes-in :bytes-out :compress-nanos :write-nanos])
+
+(defn- create-metrics
+  []
+  (zipmap metric-keys (repeatedly #(LongAdder.))))
+
+(defn- record!
+  [output k n]
+  (.add ^LongAdder (get-in output [::metrics k]) (long n)))
+
+(defn- ratio
+  [bytes-in bytes-out]
+  (when (pos? bytes-in)
+    (double (/ bytes-out bytes-in))))
+
+(defn- notify
+  "Tell the ::listener of output about event, if there is one."
+  [output event]
+  (when-let [listener (::listener output)]
+    (listener event)))
+
+(defn- summary
+  [output nanos]
+  (let [m (into {}
+                (map (fn [[k ^LongAdder v]] [k (.sum v)]))
+                (::metrics output))]
+    (assoc m
+           :event :summary
+           :ratio (ratio (:bytes-in m) (:bytes-out m))
+           :nanos nanos)))
+
+(defn- queued
+  "Number of tasks waiting for a thread of executor."
+  [executor]
+  (if (instance? ThreadPoolExecutor executor)
+    (.size (.getQueue ^ThreadPoolExecutor executor))
+    0))
+
+(defn- prepare-child
+  "Call the :prepare of child, if it has one.  It's called before child is
+  opened and a permit taken for it, as it may wait on writes which need
+  permits of their own, e.g. of a jar of a directory."
+  [child]
+  (when-let [prepare (:prepare child)]
+    (prepare)))
+
+(defn- call-with-permit
+  "Call f holding one of the ::open-files permits of output."
+  [output f]
+  (let [^Semaphore permits (::open-files output)]
+    (.acquire permits)
+    (try
+      (f)
       (finally
-        (.closeEntry out)))))
+        (.release permits)))))
+
+(defn- compress-child
+  "Compress child as policy says.  Files which are deflated whatever their
+  contents are deflated straight from the file (see zip/deflate-file)."
+  [child {:keys [level store sniff min-savings] :as policy}]
+  (let [{:keys [input file path]} child]
+    (if (and file
+             (not input)
+             (not sniff)
+             (not min-savings)
+             (not (contains? store (extension path))))
+      (zip/deflate-file (io/file file) (cond-> {} level (assoc :level level)))
+      (compress (child-input child) path policy))))
+
+(defn- deflate-child
+  [output child]
+  (try
+    (if-let [raw (:raw child)]
+      ;; Transplanted as is
+      (assoc (:entry raw) ::nanos 0)
+      ;; compress closes the input before returning
+      (let [_ (prepare-child child)
+            start (System/nanoTime)
+            entry (call-with-permit
+                    output
+                    #(compress-child child (::compression output)))]
+        (assoc entry ::nanos (- (System/nanoTime) start))))
+    (catch NullPointerException e
+      (println "NPE while write! on:" (pr-str child))
+      (throw e))))
+
+(defn- write-archive
+  "Write children to a zip archive.  Entries are compressed as the
+  ::compression policy says, concurrently on the ::executor, but written in
+  order, so the output is the same whatever the parallelism."
+  [path children jar?]
+  (let [{:keys [stream manifest] ::keys [executor window epoch] :as output} (:output path)
+        start (System/nanoTime)
+        archive (some-> (:path path) prepare-path)
+        bytes-in (volatile! 0)
+        entries (volatile! 0)
+        now (or epoch (System/currentTimeMillis))
+        ;; In reproducible mode the output mustn't depend on the time zone
+        ;; either, and permissions are always the same.
+        [file-mode dir-mode] (when epoch [file-mode dir-mode])]
+    (with-open [out (java.io.BufferedOutputStream. stream (* 64 1024))]
+      (let [w (zip/writer out
+                          :jar? jar?
+                          :zone (when epoch java.time.ZoneOffset/UTC))
+            dirs (java.util.HashSet.)]
+        (when (and jar? manifest)
+          (zip/write-bytes-entry w JarFile/MANIFEST_NAME
+                                 (manifest-bytes
+                                   (create-manifest
+                                     (:main manifest)
+                                     (:ext-attrs manifest)))
+                                 now
+                                 :mode file-mode))
+        (run-ordered
+          executor
+          window
+          (partial deflate-child (:output path))
+          (fn [child {:keys [data] :as entry} in-flight]
+            (try
+              (create-parents w dirs (:path child) now dir-mode)
+              ;; TODO: Make the jarentry code more robust around windows paths
+              ;;TODO: Looked into this, \ is never valid in a zip path, which means java.nio.Path is unusable for this case.
+              ; http://www.pkware.com/documents/casestudies/APPNOTE.TXT spec here
+              ; Not much mention is made of backslashes. Tests with `zip` indicated that \ is preserved as part of the filename.
+              ; Forward slash is not a valid character in a windows filename, nor Unix.
+              ; I think the ultimate solution here is to convert '\' to '/' as we do now. I think it covers the common bases.
+              ; It's unclear to me what is expected by having \ in a filename in a zip file would mean, but could be supported if someone articulated it.
+              (zip/write-entry w
+                               (cond-> (assoc entry
+                                              :name (prepare-path (:path child))
+                                              :time (or (:last-modified child) now))
+                                 epoch (-> (dissoc :dos-time)
+                                           (assoc :time epoch
+                                                  :mode file-mode)))
+                               (if-let [{:keys [file entry]} (:raw child)]
+                                 (fn [out]
+                                   (call-with-permit
+                                     (:output path)
+                                     #(zip/copy-raw file entry out)))
+                                 #(zip/copy-spool data %)))
+              (let [{:keys [size compressed-size] ::keys [nanos]} entry]
+                (vswap! entries inc)
+                (vswap! bytes-in + size)
+                (record! output :entries 1)
+                ;; Nested archives were counted as they were built
+                (when-not (::spool child)
+                  (record! output :bytes-in size))
+                (record! output :compress-nanos nanos)
+                (notify output {:event :entry
+                                :archive archive
+                                :path (prepare-path (:path child))
+                                :method (:method entry)
+                                :size size
+                                :compressed-size compressed-size
+                                :ratio (ratio size compressed-size)
+                                :compress-nanos nanos
+                                :in-flight in-flight
+                                :queued (queued executor)}))
+              (finally
+                (zip/delete-spool data))))
+          #(zip/delete-spool (:data %))
+          children)
+        (zip/finish w)
+        (let [bytes-out @(:offset w)]
+          (record! output :archives 1)
+          (record! output :write-nanos (- (System/nanoTime) start))
+          (when-not archive
+            (record! output :bytes-out bytes-out))
+          (notify output {:event :archive
+                          :path archive
+                          :entries @entries
+                          :bytes-in @bytes-in
+                          :bytes-out bytes-out
+                          :ratio (ratio @bytes-in bytes-out)
+                          :nanos (- (System/nanoTime) start)}))))))
 
 (defmethod write-output :jar
   [path children]
-  (with-open [out (if-let [manifest (:manifest (:output path))]
-                    (JarOutputStream. (get-in path [:output :stream])
-                                      (create-manifest
-                                        (:main manifest)
-                                        (:ext-attrs manifest)))
-                    (JarOutputStream. (get-in path [:output :stream])))]
-    (doseq [child children]
-      (try
-        (create-parents out (:path child))
-        (doto out
-          ;; TODO: Make the jarentry code more robust around windows paths
-          ;;TODO: Looked into this, \ is never valid in a zip path, which means java.nio.Path is unusable for this case.
-          ; http://www.pkware.com/documents/casestudies/APPNOTE.TXT spec here
-          ; Not much mention is made of backslashes. Tests with `zip` indicated that \ is preserved as part of the filename.
-          ; Forward slash is not a valid character in a windows filename, nor Unix.
-          ; I think the ultimate solution here is to convert '\' to '/' as we do now. I think it covers the common bases.
-          ; It's unclear to me what is expected by having \ in a filename in a zip file would mean, but could be supported if someone articulated it.
-          (.putNextEntry (-> (:path child)
-                             (prepare-path)
-                             (JarEntry.)
-                             (set-last-modified (:last-modified child))))
-          (write! (:input child))
-          (.closeEntry))
-        (catch NullPointerException e
-          (println "NPE while write! on:" (pr-str child))
-          (throw e))))))
+  (write-archive path children true))
 
 (defmethod write-output :zip
   [path children]
-  (with-open [out (ZipOutputStream. (get-in path [:output :stream]))]
-    (doseq [child children]
-      (create-parents out (:path child))
-      (doto out
-        (.putNextEntry (-> (:path child)
-                           (prepare-path)
-                           (ZipEntry.)
-                           (set-last-modified (:last-modified child))))
-        (write! (:input child))
-        (.closeEntry)))))
+  (write-archive path children false))
+
+(defn- normalize-file
+  "Set the time of file to epoch, and its permissions to the same as in
+  reproducible archives, where the file system supports it."
+  [^java.io.File file epoch dir?]
+  (.setLastModified file epoch)
+  (try
+    (Files/setPosixFilePermissions
+      (.toPath file)
+      (java.nio.file.attribute.PosixFilePermissions/fromString
+        (if dir? "rwxr-xr-x" "rw-r--r--")))
+    (catch UnsupportedOperationException _)))
+
+(defn- copy-child
+  "Copy child to the file out.  Files are copied with transferTo, so that the
+  kernel can copy them without going through the heap."
+  [child ^java.io.File out]
+  (if-let [file (:file child)]
+    (with-open [in (.getChannel (java.io.FileInputStream. (io/file file)))
+                target (.getChannel (java.io.FileOutputStream. out))]
+      (let [size (.size in)]
+        (loop [pos 0]
+          (when (< pos size)
+            (let [n (.transferTo in pos (- size pos) target)]
+              ;; Don't spin if the file shrank or the target is full
+              (when-not (pos? n)
+                (throw (java.io.IOException. (str "no progress copying " file " to " out))))
+              (recur (+ pos n)))))))
+    (with-open [in (child-input child)]
+      (Files/copy ^java.io.InputStream in (.toPath out)
+                  ^"[Ljava.nio.file.CopyOption;" (into-array CopyOption [StandardCopyOption/REPLACE_EXISTING])))))
+
+(defn- same-content?
+  [^java.io.File a ^java.io.File b]
+  (with-open [in-a (java.io.FileInputStream. a)
+              in-b (java.io.FileInputStream. b)]
+    (let [buf-a (byte-array 65536)
+          buf-b (byte-array 65536)]
+      (loop []
+        (let [n (.readNBytes in-a buf-a 0 65536)]
+          (and (= n (.readNBytes in-b buf-b 0 65536))
+               (java.util.Arrays/equals buf-a 0 n buf-b 0 n)
+               (or (< n 65536) (recur))))))))
+
+(defn- unchanged?
+  "Whether out is already a copy of child's :file.  Copies made by sync have
+  the modification time of their file, unless they're reproducible, in which
+  case their content is compared.  A link to the file is never a reproducible
+  copy, as it can't be normalized."
+  [child ^java.io.File out epoch]
+  (when-let [^java.io.File file (some-> (:file child) io/file)]
+    (and (.isFile out)
+         (= (.length out) (or (:size child) (.length file)))
+         (if epoch
+           (and (not (Files/isSameFile (.toPath out) (.toPath file)))
+                (same-content? file out))
+           (= (.lastModified out) (or (:last-modified child) (.lastModified file)))))))
+
+(defn- link-child
+  "Hard link out to child's :file.  false if the file system can't, e.g. as
+  they're on different devices."
+  [child ^java.io.File out]
+  (try
+    (Files/createLink (.toPath out) (.toPath (io/file (:file child))))
+    true
+    (catch java.io.IOException _ false)
+    (catch UnsupportedOperationException _ false)))
+
+(def ^:private synced-manifest
+  "The file in the root of a :dir output which lists what pack wrote to it, so
+  that sync only ever deletes those."
+  ".pack-files.edn")
+
+(defn- read-synced
+  [^java.io.File manifest]
+  (try
+    (set (edn/read-string (slurp manifest)))
+    (catch Exception _ #{})))
+
+(defn- write-synced
+  [^java.io.File manifest written]
+  (io/make-parents manifest)
+  (spit manifest (pr-str (into (sorted-set) written))))
+
+(defn- delete-stale
+  "Delete the files under root named in stale, and any directories that leaves
+  empty."
+  [^java.io.File root stale]
+  (let [root-p (.normalize (.toAbsolutePath (.toPath root)))]
+    (doseq [name stale
+            :let [file (io/file root name)]
+            ;; Never outside root, or a directory which was a file
+            :when (and (.startsWith (.normalize (.toAbsolutePath (.toPath file))) root-p)
+                       (not (.isDirectory file))
+                       (Files/deleteIfExists (.toPath file)))]
+      (loop [^java.io.File dir (.getParentFile file)]
+        (when (and dir
+                   (not= root dir)
+                   (empty? (.list dir)))
+          (Files/delete (.toPath dir))
+          (recur (.getParentFile dir)))))))
 
 (defmethod write-output :dir
   [path children]
   (when-let [root (get-in path [:output :root])]
-    (doseq [child children]
-      (let [out (io/file root (path-seq->str (:path child)))]
-        (io/make-parents out)
-        (io/copy (:input child) out)))))
+    (let [epoch (get-in path [:output ::epoch])
+          sync? (get-in path [:output :sync])
+          manifest (io/file root synced-manifest)
+          written (into #{} (map #(prepare-path (:path %))) children)
+          ;; Writes to a synced output are listed too, so a later sync can
+          ;; delete them
+          synced (when (or sync? (.isFile manifest))
+                   (read-synced manifest))]
+      (when synced
+        ;; Before writing, so an interrupted write leaves nothing unlisted
+        (write-synced manifest (into synced written)))
+      (doseq [child children]
+        (let [out (io/file root (path-seq->str (:path child)))
+              _ (io/make-parents out)
+              method (cond
+                       (and sync? (unchanged? child out epoch))
+                       (do (when epoch
+                             (normalize-file out epoch false))
+                           :skip)
+
+                       ;; Linked files share their times and permissions
+                       ;; with the original, so they can't be normalized
+                       (and (:link child) (not epoch)
+                            (do (Files/deleteIfExists (.toPath out))
+                                (link-child child out)))
+                       :link
+
+                       :else
+                       (do ;; Never write through a link made by sync
+                           (Files/deleteIfExists (.toPath out))
+                           (prepare-child child)
+                           (call-with-permit (:output path) #(copy-child child out))
+                           (when epoch
+                             (normalize-file out epoch false))
+                           (when (and sync? (not epoch) (:file child))
+                             (.setLastModified out (.lastModified (io/file (:file child)))))
+                           :copy))
+              size (.length out)]
+          (record! (:output path) :entries 1)
+          (when (= :copy method)
+            (when-not (::spool child)
+              (record! (:output path) :bytes-in size))
+            (record! (:output path) :bytes-out size))
+          (notify (:output path) {:event :entry
+                                  :path (prepare-path (:path child))
+                                  :method method
+                                  :size size
+                                  :compressed-size size})))
+      (when sync?
+        (delete-stale (io/file root) (remove written synced))
+        (write-synced manifest written))
+      (when epoch
+        ;; After the files, as writing them touches their directories
+        (doseq [dir (into #{}
+                          (mapcat #(map vec (elodin/path-seq-parents (:path %))))
+                          children)]
+          (normalize-file (io/file root (path-seq->str dir)) epoch true))))))
+
+(def output-options
+  "Options which may be given in the output of write-vfs, and which apply to the
+  whole tree."
+  [:parallelism :incremental :reproducible :compression :max-open-files
+   :listener :sync ::open-files])
+
+(defn share-open-files
+  "output with the permits to open files that its writes share, made for its
+  :max-open-files, default = 256, unless it has them already.  Every write-vfs
+  given it, and the jars made for them with its options, then stay under the
+  limit together."
+  [output]
+  (cond-> output
+    (not (::open-files output))
+    (assoc ::open-files (Semaphore. (or (:max-open-files output) 256)))))
+
+(defn- create-executor
+  ^ExecutorService [prefix parallelism]
+  (let [n (atom 0)]
+    (Executors/newFixedThreadPool
+      parallelism
+      (reify ThreadFactory
+        (newThread [_ r]
+          (doto (Thread. r (str prefix "-" (swap! n inc)))
+            (.setDaemon true)))))))
+
+(defn- release-spools
+  [children]
+  (doseq [{::keys [spool] :as child} children
+          :when spool]
+    (some-> ^java.io.InputStream (:input child) .close)
+    (zip/delete-spool spool)))
+
+(defn- build-archive
+  "Build the nested archive node from its children into a spool.  Returns a
+  leaf reading the archive back."
+  [node children]
+  (let [spool (zip/spool)]
+    (try
+      (write-output (update node :output assoc :stream (:stream spool))
+                    children)
+      (-> node
+          (dissoc :paths :output)
+          (assoc ::spool spool)
+          ;; Let large archives be copied as files
+          (merge (if-let [file (zip/spool-file spool)]
+                   {:file file}
+                   {:input (zip/spool-input spool)})))
+      (catch Throwable t
+        (zip/delete-spool spool)
+        (throw t))
+      (finally
+        (release-spools children)))))
+
+(defn- schedule
+  "Returns a CompletableFuture of node as a leaf.  Nested archives are built on
+  executor as soon as all of their children are ready, so independent
+  archives are built concurrently."
+  [^ExecutorService executor output node]
+  (if (path? node)
+    (if (:paths node)
+      (let [children (mapv #(schedule executor output %) (:paths node))]
+        (-> (CompletableFuture/allOf (into-array CompletableFuture children))
+            (.thenApplyAsync
+              (reify Function
+                (apply [_ _]
+                  (build-archive (assoc node :output (assoc output :type :jar))
+                                 (mapv #(.join ^CompletableFuture %) children))))
+              executor)))
+      (CompletableFuture/completedFuture node))
+    (CompletableFuture/completedFuture node)))
 
 (defn write-vfs
+  "Write paths to output.  Nested archives are built concurrently, and archive
+  entries compressed in parallel, each on (:parallelism output) threads,
+  defaulting to the number of processors.
+
+  Leaves are read from their :input, which may be an InputStream or a
+  function of no arguments to open one, their :file, or their :raw zip entry.
+  Files and openers are only opened when their entry is written, and at most
+  (:max-open-files output) at once, default = 256.  The limit is shared with
+  other writes given the same output from share-open-files.  A leaf's
+  :prepare, a function of no arguments, is called before it's opened, for
+  inputs which have to be written first.
+
+  (:listener output) is called with an event map as each entry and archive is
+  written.  Nested archives are built concurrently, so it's called from
+  several threads at once, and must be thread-safe (e.g. swap! an atom):
+    {:event :entry, :archive, :path, :method, :size, :compressed-size, :ratio,
+     :compress-nanos, :in-flight, :queued}
+    {:event :archive, :path, :entries, :bytes-in, :bytes-out, :ratio, :nanos}
+  :archive and :path are nil for output itself.  :in-flight is the number of
+  entries of the archive being compressed, and :queued the number waiting for
+  a thread.  :method is :stored or :deflated in an archive, and :copy, :link
+  or :skip in a :dir.
+
+  A :dir output with :sync skips the files already copied to it, and removes
+  those it wrote before which aren't in paths any more.  What it wrote is
+  listed in .pack-files.edn in its root, and nothing else is ever deleted.
+  Leaves with :link are hard linked, where the file system supports it,
+  rather than copied.
+
+  Returns a summary, which is also the last event of this call.  A listener
+  shared by several calls, as under juxt.pack.build, gets one for each:
+    {:event :summary, :entries, :archives, :bytes-in, :bytes-out, :ratio,
+     :compress-nanos, :write-nanos, :nanos}"
   [output paths]
-  (let [branch? path?
-        children :paths
-
-        g {:paths (postwalk #(if (path? %) (add-output %) %) paths)
-           :output output}]
-
-    (let [processors
-          (create-processors
-            (tree-height branch? children g)
-            (fn [{:keys [node height children]}]
-              (try
-                (when (:output node)
-                  (cond
-                    (:paths node)
-                    (write-output node children)
-                    
-                    (:input node)
-                    (with-open [o (get-in node [:output :stream])]
-                      (write! o (:input node)))))
-                (catch Exception e
-                  #_(println (str "An exception occurred" (pr-str node height children)))
-                  (throw e)))))]
-      (iterate-tree branch? children processors g)
-      ;; Work is not complete until all processor threads have finished
-      (stop-processors processors))))
+  (let [start (System/nanoTime)
+        parallelism (or (:parallelism output)
+                        (.availableProcessors (Runtime/getRuntime)))
+        ;; Archives wait on their entries being deflated, so they can't share
+        ;; a pool.
+        archive-executor (create-executor "archive" parallelism)
+        deflate-executor (create-executor "deflate" parallelism)
+        context (cond-> {::executor deflate-executor
+                         ::window (* 2 parallelism)
+                         ::compression (compression-policy (:compression output))
+                         ::open-files (::open-files (share-open-files output))
+                         ::listener (:listener output)
+                         ::metrics (create-metrics)}
+                  (:reproducible output)
+                  (assoc ::epoch reproducible-epoch))
+        children (mapv #(schedule archive-executor context %) paths)]
+    (try
+      (let [children (try
+                       (mapv #(.join ^CompletableFuture %) children)
+                       (catch CompletionException e
+                         (throw (.getCause e))))]
+        (try
+          (write-output {:output (merge output context)} children)
+          (finally
+            (release-spools children)))
+        (let [summary (summary context (- (System/nanoTime) start))]
+          (notify context summary)
+          summary))
+      (catch Throwable t
+        (some-> ^java.io.OutputStream (:stream output) .close)
+        ;; Don't leave spools of archives which were built behind
+        (doseq [^CompletableFuture f children]
+          (when-not (.cancel f false)
+            (try (release-spools [(.join f)]) (catch Throwable _))))
+        (throw t))
+      (finally
+        (.shutdown archive-executor)
+        (.shutdown deflate-executor)))))
+
+(defn file-fingerprint
+  "A fingerprint of file for incremental builds (see write-file), from its
+  path, size and modification time."
+  [file]
+  (let [^java.io.File file (io/file file)]
+    (str (.getAbsolutePath file) ":" (.length file) ":" (.lastModified file))))
 
 (defn files-path
-  [files dir]
-  (map (fn [file]
+  "Paths for files under dir, sorted so that they don't depend on the order
+  that the file system lists them in."
+  [files ^java.io.File dir]
+  (sort-by
+    #(string/join "/" (:path %))
+    (map (fn [^java.io.File file]
          {:path (path->path-seq
                   (.relativize (.toPath dir)
                                (.toPath file)))
-          :input (io/input-stream file)
+          ;; Opened when written, as there may be too many files to open
+          ;; at once
+          :file file
           :last-modified (.lastModified file)})
-       (filter (memfn isFile) files)))
+       (filter #(.isFile ^java.io.File %) files))))
+
+;; Walking
+
+(def ^:private walk-executor
+  (delay (create-executor "walk" (max 4 (.availableProcessors (Runtime/getRuntime))))))
+
+(defn- walk
+  [^java.io.File dir]
+  (let [root (.toPath dir)
+        acc (java.util.ArrayList.)]
+    (when (Files/isDirectory root (make-array LinkOption 0))
+      (Files/walkFileTree
+        root
+        (java.util.EnumSet/of FileVisitOption/FOLLOW_LINKS)
+        Integer/MAX_VALUE
+        (proxy [SimpleFileVisitor] []
+          (visitFile [^Path path ^BasicFileAttributes attrs]
+            (when (.isRegularFile attrs)
+              (let [path-seq (path->path-seq (.relativize root path))]
+                (.add acc [(string/join "/" path-seq)
+                           {:path path-seq
+                            :file (.toFile path)
+                            :size (.size attrs)
+                            :last-modified (.toMillis (.lastModifiedTime attrs))}])))
+            FileVisitResult/CONTINUE)
+          (visitFileFailed [path e]
+            ;; Like file-seq, don't follow links round in circles
+            (if (instance? FileSystemLoopException e)
+              FileVisitResult/CONTINUE
+              (throw e))))))
+    (map second (sort-by first acc))))
+
+(defn dir-path
+  "Paths for the files under dir, like files-path for (file-seq dir), but each
+  file's attributes are read in one go as the tree is walked.  The walk starts
+  straight away in the background, so the dirs of several calls are walked in
+  parallel, and the result is waited for when it's first used."
+  [dir]
+  (let [dir (io/file dir)
+        ^Future f (.submit ^ExecutorService @walk-executor ^Callable #(walk dir))]
+    (lazy-seq (deref-future f))))
+
+;; Incremental builds
+
+(defn fingerprint
+  "The :fingerprint of a leaf (or of its :file), or of all the children of a
+  branch.  nil if anything in node has no fingerprint."
+  [node]
+  (if-let [paths (:paths node)]
+    (let [fps (map fingerprint paths)]
+      (when (every? some? fps)
+        (cache/digest (mapcat (fn [child fp] [(prepare-path (:path child)) fp])
+                        paths
+                        fps))))
+    (or (:fingerprint node)
+        (when-let [file (:file node)]
+          (if (:size node)
+            ;; Already known from walking
+            (str (.getAbsolutePath (io/file file)) ":" (:size node) ":" (:last-modified node))
+            (file-fingerprint file))))))
+
+(defn- close-inputs
+  [node]
+  (if-let [paths (:paths node)]
+    (run! close-inputs paths)
+    (some-> ^java.io.Closeable (:input node) .close)))
+
+(defn- read-fingerprints
+  [fp-file]
+  (try
+    (edn/read-string (slurp fp-file))
+    (catch Exception _)))
+
+(defn- reuse-previous
+  "Replace paths which haven't changed since previous was built with its
+  entries."
+  [previous old-fps paths fps]
+  (let [entries (into {} (map (juxt :name identity)) (zip/entries previous))]
+    (mapv (fn [node fp]
+            (let [name (prepare-path (:path node))
+                  entry (get entries name)]
+              (if (and fp entry (= fp (get old-fps name)))
+                (do (close-inputs node)
+                    {:path (:path node)
+                     :raw {:file previous
+                           :entry entry}})
+                node)))
+          paths
+          fps)))
+
+(defn write-file
+  "Write paths to the jar or zip file, as write-vfs to output.
+
+  With (:incremental output), top-level paths with the same fingerprint as when
+  file was last built are copied from it as is, instead of being rebuilt.  A
+  path's fingerprint is its :fingerprint, or that of all its children.  The
+  fingerprints are kept next to file, in file.inputs.edn, along with the
+  output options which change how entries are written."
+  [file output paths]
+  (let [file (io/file file)
+        fp-file (io/file (str file ".inputs.edn"))
+        options (select-keys output [:reproducible :compression])
+        old (when (and (:incremental output) (.exists file))
+              (read-fingerprints fp-file))
+        old-fps (when (= options (:options old))
+                  (:fingerprints old))
+        ;; file is about to be overwritten, so read from a copy
+        previous (when (map? old-fps)
+                   (let [previous (io/file (str file ".previous"))]
+                     (Files/move (.toPath file) (.toPath previous)
+                                 (into-array CopyOption [StandardCopyOption/REPLACE_EXISTING]))
+                     previous))]
+    (try
+      ;; Never trust fingerprints for a partly written or non-incremental file
+      (io/delete-file fp-file true)
+      (io/make-parents file)
+      (let [fps (if (:incremental output)
+                  (mapv fingerprint paths)
+                  (repeat nil))
+            paths (if previous
+                    (try
+                      (reuse-previous previous old-fps paths fps)
+                      (catch java.io.IOException _
+                        paths))
+                    paths)
+            summary (write-vfs (assoc output :stream (io/output-stream file)) paths)]
+        (when (:incremental output)
+          (spit fp-file
+                (pr-str {:options options
+                         :fingerprints
+                         (into (sorted-map)
+                               (keep (fn [[node fp]]
+                                       (when fp [(prepare-path (:path node)) fp])))
+                               (map vector paths fps))})))
+        summary)
+      (finally
+        (some-> previous (io/delete-file true))))))
@@ -0,0 +1,667 @@
+(ns juxt.pack.impl.zip
+  "A minimal zip writer for entries whose CRC and sizes are known before they
+  are written.
+
+  Unlike ZipOutputStream this lets entries be compressed ahead of time (e.g. in
+  parallel), and written out afterwards in whatever order is required.  Entries
+  of existing zips can also be copied in without being recompressed."
+  (:require
+    [clojure.java.io :as io])
+  (:import
+    [java.io File InputStream OutputStream]
+    [java.nio ByteBuffer ByteOrder]
+    [java.nio.channels Channels FileChannel]
+    [java.nio.charset StandardCharsets]
+    [java.nio.file Files OpenOption StandardOpenOption]
+    [java.nio.file.attribute FileAttribute]
+    [java.time Instant LocalDateTime ZoneId]
+    [java.util ArrayList HashSet]
+    [java.util.zip CRC32 Deflater Inflater InflaterInputStream ZipException]))
+
+;; Spooling
+
+(def ^:private buffer-size (* 64 1024))
+
+(def default-spool-threshold
+  "Bytes held in memory by a spool before it spills to a temp file."
+  (* 8 1024 1024))
+
+(defn spool
+  "An output which buffers in memory until more than threshold bytes have been
+  written, then spills to a temp file.  Write to its :stream, then read it back
+  with spool-input, and release it with delete-spool."
+  ([] (spool default-spool-threshold))
+  ([threshold]
+   (let [state (volatile! {:size 0
+                           :mem (java.io.ByteArrayOutputStream.)})
+         spill! (fn []
+                  (let [{:keys [mem]} @state
+                        file (.toFile (Files/createTempFile
+                                        "pack-spool" ".tmp"
+                                        (into-array FileAttribute [])))
+                        out (java.io.BufferedOutputStream.
+                              (java.io.FileOutputStream. file)
+                              buffer-size)]
+                    (.deleteOnExit file)
+                    (.writeTo ^java.io.ByteArrayOutputStream mem out)
+                    (vswap! state assoc :mem nil :file file :out out)))
+         stream (proxy [OutputStream] []
+                  (write
+                    ([b]
+                     (if (bytes? b)
+                       (.write ^OutputStream this ^bytes b 0 (alength ^bytes b))
+                       (.write ^OutputStream this (byte-array [(unchecked-byte b)]) 0 1)))
+                    ([b off len]
+                     (let [{:keys [size mem]} @state]
+                       (when (and mem (> (+ size len) threshold))
+                         (spill!))
+                       (let [{:keys [mem out]} @state]
+                         (if mem
+                           (.write ^java.io.ByteArrayOutputStream mem ^bytes b (int off) (int len))
+                           (.write ^OutputStream out ^bytes b (int off) (int len))))
+                       (vswap! state update :size + len))))
+                  (flush []
+                    (some-> ^OutputStream (:out @state) .flush))
+                  (close []
+                    (some-> ^OutputStream (:out @state) .close)))]
+     {:stream stream
+      :state state})))
+
+(defn spool-size
+  [spool]
+  (:size @(:state spool)))
+
+(defn spool-file
+  "The temp file spool has spilled to, if it has."
+  ^File [spool]
+  (:file @(:state spool)))
+
+(defn spool-input
+  "An InputStream of everything written to spool, which must be closed first."
+  ^InputStream [spool]
+  (let [{:keys [mem file]} @(:state spool)]
+    (if mem
+      (java.io.ByteArrayInputStream. (.toByteArray ^java.io.ByteArrayOutputStream mem))
+      (io/input-stream file))))
+
+(defn copy-spool
+  "Copy the contents of spool to out."
+  [spool ^OutputStream out]
+  (let [{:keys [mem file]} @(:state spool)]
+    (if mem
+      (.writeTo ^java.io.ByteArrayOutputStream mem out)
+      (Files/copy (.toPath ^java.io.File file) out))))
+
+(defn delete-spool
+  [spool]
+  (when-let [file (some-> spool :state deref :file)]
+    (.delete ^java.io.File file)))
+
+;; Compression
+
+(defn- thread-local
+  ^ThreadLocal [f]
+  (ThreadLocal/withInitial (reify java.util.function.Supplier (get [_] (f)))))
+
+;; Compressing many small entries is dominated by allocating buffers and
+;; zlib state, so each thread keeps its own.
+(def ^:private ^ThreadLocal read-buffer (thread-local #(byte-array buffer-size)))
+(def ^:private ^ThreadLocal deflate-buffer (thread-local #(byte-array buffer-size)))
+(def ^:private ^ThreadLocal deflaters (thread-local #(java.util.HashMap.)))
+
+(defn- deflater
+  "A deflater at level for this thread, to be reset after use."
+  ^Deflater [level]
+  (let [^java.util.Map m (.get deflaters)]
+    (or (.get m level)
+        (let [d (Deflater. (int level) true)]
+          (.put m level d)
+          d))))
+
+(defn- copy-crc
+  "Copy in to out, updating crc.  Returns the number of bytes copied."
+  [^InputStream in ^OutputStream out ^CRC32 crc]
+  (let [^bytes buf (.get read-buffer)]
+    (loop [size 0]
+      (let [n (.read in buf)]
+        (if (neg? n)
+          size
+          (do (.update crc buf 0 n)
+              (.write out buf 0 n)
+              (recur (+ size n))))))))
+
+(defn store
+  "Read in to the end (closing it) into a spool, uncompressed.  Returns an
+  entry as for deflate."
+  [^InputStream in {:keys [threshold]
+                    :or {threshold default-spool-threshold}}]
+  (let [crc (CRC32.)
+        data (spool threshold)]
+    (try
+      (let [size (with-open [in in
+                             out ^OutputStream (:stream data)]
+                   (copy-crc in out crc))]
+        {:method :stored
+         :crc (.getValue crc)
+         :size size
+         :compressed-size size
+         :data data})
+      (catch Throwable t
+        (delete-spool data)
+        (throw t)))))
+
+(defn- deflate-into
+  "Deflate everything deflater has been given into out."
+  [^Deflater deflater ^OutputStream out]
+  (let [^bytes buf (.get deflate-buffer)]
+    (loop []
+      (when-not (.needsInput deflater)
+        (.write out buf 0 (.deflate deflater buf))
+        (recur)))))
+
+(defn- deflate-with
+  "Deflate what (feed crc deflater out) gives deflater into a spool.  feed
+  returns the number of bytes it gave, having deflated them into out.
+  Returns an entry as for deflate."
+  [feed {:keys [level threshold]
+         :or {level Deflater/DEFAULT_COMPRESSION
+              threshold default-spool-threshold}}]
+  (let [crc (CRC32.)
+        deflater (deflater level)
+        data (spool threshold)
+        ^OutputStream out (:stream data)]
+    (try
+      (let [size (feed crc deflater out)]
+        (.finish deflater)
+        (let [^bytes dbuf (.get deflate-buffer)]
+          (while (not (.finished deflater))
+            (.write out dbuf 0 (.deflate deflater dbuf))))
+        (.close out)
+        {:method :deflated
+         :crc (.getValue crc)
+         :size size
+         :compressed-size (spool-size data)
+         :data data})
+      (catch Throwable t
+        (.close out)
+        (delete-spool data)
+        (throw t))
+      (finally
+        (.reset deflater)))))
+
+(defn deflate
+  "Read in to the end (closing it), deflating it into a spool.  Returns an
+  entry with its :crc, :size and :compressed-size, and the spool as :data."
+  [^InputStream in opts]
+  (with-open [in in]
+    (deflate-with
+      (fn [^CRC32 crc ^Deflater deflater out]
+        (let [^bytes buf (.get read-buffer)]
+          (loop [size 0]
+            (let [n (.read in buf)]
+              (if (neg? n)
+                size
+                (do (.update crc buf 0 n)
+                    (.setInput deflater buf 0 n)
+                    (deflate-into deflater out)
+                    (recur (+ size n))))))))
+      opts)))
+
+(defn- open-channel
+  ^FileChannel [^File file]
+  (FileChannel/open (.toPath file) (into-array OpenOption [StandardOpenOption/READ])))
+
+(def ^:private ^ThreadLocal direct-buffer
+  (thread-local #(ByteBuffer/allocateDirect buffer-size)))
+
+(defn deflate-file
+  "As deflate, for file.  It's read from a FileChannel into a direct buffer,
+  which the CRC and the deflater read in place, so its contents are never
+  copied onto the heap."
+  [^File file opts]
+  (with-open [ch (open-channel file)]
+    (deflate-with
+      (fn [^CRC32 crc ^Deflater deflater out]
+        (let [^ByteBuffer buf (.get direct-buffer)]
+          (loop [size 0]
+            (.clear buf)
+            (let [n (.read ch buf)]
+              ;; The deflater keeps reading buf until it's finished, so it
+              ;; mustn't be left cleared at the end
+              (.flip buf)
+              (if (neg? n)
+                size
+                (do (.update crc buf)
+                    (.rewind buf)
+                    (.setInput deflater buf)
+                    (deflate-into deflater out)
+                    (recur (+ size n))))))))
+      opts)))
+
+;; Content types
+
+(def ^:private compressed-magic
+  "Leading bytes of formats which are already compressed, with nil matching
+  any byte."
+  [[0x50 0x4B 0x03 0x04]                          ; zip, jar
+   [0x50 0x4B 0x05 0x06]                          ; empty zip
+   [0x1F 0x8B]                                    ; gzip
+   [0x89 0x50 0x4E 0x47 0x0D 0x0A 0x1A 0x0A]      ; png
+   [0xFF 0xD8 0xFF]                               ; jpeg
+   [0x47 0x49 0x46 0x38]                          ; gif
+   [0x52 0x49 0x46 0x46 nil nil nil nil 0x57 0x45 0x42 0x50] ; webp
+   [0x77 0x4F 0x46 0x46]                          ; woff
+   [0x77 0x4F 0x46 0x32]                          ; woff2
+   [0x42 0x5A 0x68]                               ; bzip2
+   [0xFD 0x37 0x7A 0x58 0x5A 0x00]                ; xz
+   [0x28 0xB5 0x2F 0xFD]                          ; zstd
+   [0x37 0x7A 0xBC 0xAF 0x27 0x1C]])              ; 7z
+
+(def ^:private magic-length
+  (apply max (map count compressed-magic)))
+
+(defn compressed-content?
+  "Whether in starts like a format which is already compressed.  in must
+  support mark, and is left where it was."
+  [^InputStream in]
+  (let [buf (byte-array magic-length)]
+    (.mark in magic-length)
+    (let [n (.readNBytes in buf 0 magic-length)]
+      (.reset in)
+      (boolean
+        (some (fn [magic]
+                (and (<= (count magic) n)
+                     (every? true?
+                             (map-indexed (fn [i b]
+                                            (or (nil? b)
+                                                (= b (bit-and (aget buf i) 0xFF))))
+                                          magic))))
+              compressed-magic)))))
+
+;; Writing
+
+(defn- dos-time
+  [^long ms ^ZoneId zone]
+  (let [t (LocalDateTime/ofInstant (Instant/ofEpochMilli ms) zone)
+        year (min 2107 (.getYear t))]
+    (if (< year 1980)
+      (bit-or (bit-shift-left 1 21) (bit-shift-left 1 16))
+      (bit-or (bit-shift-left (- year 1980) 25)
+              (bit-shift-left (.getMonthValue t) 21)
+              (bit-shift-left (.getDayOfMonth t) 16)
+              (bit-shift-left (.getHour t) 11)
+              (bit-shift-left (.getMinute t) 5)
+              (bit-shift-right (.getSecond t) 1)))))
+
+(def ^:private zip32-limit 0xFFFFFFFF)
+
+(def jar-magic
+  "Extra field JarOutputStream puts on the first entry of a jar."
+  (byte-array [(unchecked-byte 0xFE) (unchecked-byte 0xCA) 0 0]))
+
+(defn writer
+  "Create a writer to out.  Entries are added with write-entry, and the
+  archive is completed by finish (which doesn't close out).
+
+  With :jar? the first entry is marked as JarOutputStream would.  Times are
+  converted to DOS times in :zone, default = the system time zone."
+  [^OutputStream out & {:keys [jar? zone]}]
+  {:out out
+   :jar? jar?
+   :zone (or zone (ZoneId/systemDefault))
+   :offset (volatile! 0)
+   :entries (ArrayList.)
+   :names (HashSet.)})
+
+(defn- write-bytes
+  [{:keys [^OutputStream out offset]} ^bytes b]
+  (.write out b)
+  (vswap! offset + (alength b)))
+
+(defn- buffer
+  ^ByteBuffer [n]
+  (.order (ByteBuffer/allocate n) ByteOrder/LITTLE_ENDIAN))
+
+(defn- put16 [^ByteBuffer buf v] (.putShort buf (unchecked-short v)))
+(defn- put32 [^ByteBuffer buf v] (.putInt buf (unchecked-int v)))
+(defn- put64 [^ByteBuffer buf v] (.putLong buf (long v)))
+
+(defn- zip64?
+  [{:keys [size compressed-size offset]}]
+  (or (>= size zip32-limit)
+      (>= compressed-size zip32-limit)
+      (>= offset zip32-limit)))
+
+(defn- version-needed
+  [entry]
+  (cond
+    (zip64? entry) 45
+    (= :deflated (:method entry)) 20
+    :else 10))
+
+(defn- extra-field
+  [{:keys [extra size compressed-size offset] :as entry} central?]
+  (let [^bytes extra (or extra (byte-array 0))]
+    (if (zip64? entry)
+      (let [buf (buffer (+ (alength extra) (if central? 28 20)))]
+        (.put buf extra)
+        (doto buf
+          (put16 1)
+          (put16 (if central? 24 16))
+          (put64 size)
+          (put64 compressed-size))
+        (when central? (put64 buf offset))
+        (.array buf))
+      extra)))
+
+(defn- header
+  [{:keys [^bytes name-bytes method crc size compressed-size dos-time offset mode]
+    :as entry}
+   central?]
+  (let [zip64 (zip64? entry)
+        ^bytes extra (extra-field entry central?)
+        buf (buffer (+ (if central? 46 30) (alength name-bytes) (alength extra)))]
+    (if central?
+      (doto buf
+        (put32 0x02014b50)
+        ;; Made by unix when there are permissions
+        (put16 (cond->> (version-needed entry)
+                 mode (bit-or 0x0300))))
+      (put32 buf 0x04034b50))
+    (doto buf
+      (put16 (version-needed entry))
+      ;; Names are always UTF-8
+      (put16 0x0800)
+      (put16 (case method :stored 0 :deflated 8))
+      (put32 dos-time)
+      (put32 crc)
+      (put32 (if zip64 zip32-limit compressed-size))
+      (put32 (if zip64 zip32-limit size))
+      (put16 (alength name-bytes))
+      (put16 (alength extra)))
+    (when central?
+      (doto buf
+        ;; comment length, disk number, internal & external attributes
+        (put16 0)
+        (put16 0)
+        (put16 0)
+        (put32 (bit-shift-left (or mode 0) 16))
+        (put32 (if zip64 zip32-limit offset))))
+    (doto buf
+      (.put name-bytes)
+      (.put extra))
+    (.array buf)))
+
+(defn write-entry
+  "Write an entry to w.  entry has the :name, :method (:stored or :deflated),
+  :crc, :size, :compressed-size and :time (millis) of the entry, and optionally
+  :extra field data, a :dos-time to use as is, and the unix :mode (type and
+  permissions) of the file.  write-data is called with the OutputStream to write
+  exactly :compressed-size bytes of entry data to.
+
+  Throws a ZipException for duplicate entries, like ZipOutputStream."
+  [{:keys [out offset jar? zone ^ArrayList entries ^HashSet names] :as w}
+   {:keys [name compressed-size time] :as entry}
+   write-data]
+  (when-not (.add names name)
+    (throw (ZipException. (str "duplicate entry: " name))))
+  (let [entry (cond-> (assoc entry
+                             :name-bytes (.getBytes ^String name StandardCharsets/UTF_8)
+                             :offset @offset)
+                (not (:dos-time entry))
+                (assoc :dos-time (dos-time time zone))
+                (and jar? (.isEmpty entries))
+                (update :extra #(byte-array (concat jar-magic %))))]
+    (write-bytes w (header entry false))
+    (write-data out)
+    (vswap! offset + compressed-size)
+    (.add entries entry)))
+
+(defn write-directory
+  "Write an empty, stored directory entry.  name must end in /."
+  [w name time & {:keys [mode]}]
+  (write-entry w
+               {:name name
+                :method :stored
+                :crc 0
+                :size 0
+                :compressed-size 0
+                :time time
+                :mode mode}
+               (fn [_])))
+
+(defn write-bytes-entry
+  "Write a small entry from a byte array, deflated."
+  [w name ^bytes b time & {:keys [mode]}]
+  (let [{:keys [data] :as entry} (deflate (java.io.ByteArrayInputStream. b) {})]
+    (try
+      (write-entry w
+                   (assoc entry :name name :time time :mode mode)
+                   #(copy-spool data %))
+      (finally
+        (delete-spool data)))))
+
+(defn finish
+  "Write the central directory of w."
+  [{:keys [^OutputStream out offset ^ArrayList entries] :as w}]
+  (let [cd-offset @offset]
+    (doseq [entry entries]
+      (write-bytes w (header entry true)))
+    (let [cd-size (- @offset cd-offset)
+          n (.size entries)]
+      (when (or (>= n 0xFFFF)
+                (>= cd-offset zip32-limit)
+                (>= cd-size zip32-limit))
+        (let [zip64-offset @offset]
+          (write-bytes w (.array
+                           (doto (buffer 56)
+                             (put32 0x06064b50)
+                             (put64 44)
+                             (put16 45)
+                             (put16 45)
+                             (put32 0)
+                             (put32 0)
+                             (put64 n)
+                             (put64 n)
+                             (put64 cd-size)
+                             (put64 cd-offset))))
+          (write-bytes w (.array
+                           (doto (buffer 20)
+                             (put32 0x07064b50)
+                             (put32 0)
+                             (put64 zip64-offset)
+                             (put32 1))))))
+      (write-bytes w (.array
+                       (doto (buffer 22)
+                         (put32 0x06054b50)
+                         (put16 0)
+                         (put16 0)
+                         (put16 (min n 0xFFFF))
+                         (put16 (min n 0xFFFF))
+                         (put32 (min cd-size zip32-limit))
+                         (put32 (min cd-offset zip32-limit))
+                         (put16 0))))
+      (.flush out))))
+
+;; Reading
+
+(defn- read-at
+  "Read n bytes of ch at position pos."
+  ^ByteBuffer [^FileChannel ch pos n]
+  (let [buf (buffer n)]
+    (loop [p (long pos)]
+      (when (.hasRemaining buf)
+        (let [r (.read ch buf p)]
+          (when (neg? r)
+            (throw (ZipException. "unexpected end of zip file")))
+          (recur (+ p r)))))
+    (.flip buf)))
+
+(defn- u16 ^long [^ByteBuffer buf ^long i] (bit-and (.getShort buf (int i)) 0xFFFF))
+(defn- u32 ^long [^ByteBuffer buf ^long i] (bit-and (.getInt buf (int i)) 0xFFFFFFFF))
+
+(defn- find-end
+  "Position and contents of the end of central directory record of ch."
+  [^FileChannel ch]
+  (let [size (.size ch)
+        start (max 0 (- size (+ 22 0xFFFF)))
+        buf (read-at ch start (- size start))]
+    (loop [i (- (.limit buf) 22)]
+      (cond
+        (neg? i)
+        (throw (ZipException. "zip END header not found"))
+
+        (= 0x06054b50 (.getInt buf (int i)))
+        {:position (+ start i)
+         :entries (u16 buf (+ i 10))
+         :cd-size (u32 buf (+ i 12))
+         :cd-offset (u32 buf (+ i 16))}
+
+        :else
+        (recur (dec i))))))
+
+(defn- find-central-directory
+  [^FileChannel ch]
+  (let [{:keys [position entries cd-size cd-offset] :as end} (find-end ch)]
+    (if (and (or (= entries 0xFFFF)
+                 (= cd-size zip32-limit)
+                 (= cd-offset zip32-limit))
+             (>= position 20))
+      (let [locator (read-at ch (- position 20) 20)]
+        (if (= 0x07064b50 (.getInt locator 0))
+          (let [end64 (read-at ch (.getLong locator 8) 56)]
+            {:entries (.getLong end64 32)
+             :cd-size (.getLong end64 40)
+             :cd-offset (.getLong end64 48)})
+          end))
+      end)))
+
+(defn- zip64-extra
+  "Apply the Zip64 extended information in the extra field of a central
+  directory header at i to entry."
+  [entry ^ByteBuffer buf i n]
+  (loop [i i]
+    (if (< i (- n 4))
+      (let [id (u16 buf i)
+            len (u16 buf (+ i 2))]
+        (if (= id 1)
+          (let [fields (filter #(= zip32-limit (get entry %))
+                               [:size :compressed-size :local-offset])]
+            (reduce (fn [entry [k j]]
+                      (assoc entry k (.getLong buf (int (+ i 4 (* 8 j))))))
+                    entry
+                    (map vector fields (range (quot len 8)))))
+          (recur (+ i 4 len))))
+      entry)))
+
+(defn entries
+  "Read the central directory of the zip file.  Returns entries as for
+  write-entry (with a :dos-time), and the :local-offset of their header in
+  file.  Entries can be copied with copy-raw, or read with raw-input."
+  [^File file]
+  (with-open [ch (open-channel file)]
+    (let [{:keys [entries cd-size cd-offset]} (find-central-directory ch)
+          buf (read-at ch cd-offset cd-size)]
+      (loop [i 0
+             n 0
+             acc (transient [])]
+        (if (< n entries)
+          (do
+            (when-not (= 0x02014b50 (.getInt buf (int i)))
+              (throw (ZipException. (str "invalid CEN header in " file))))
+            (let [flags (u16 buf (+ i 8))
+                  name-len (u16 buf (+ i 28))
+                  extra-len (u16 buf (+ i 30))
+                  comment-len (u16 buf (+ i 32))
+                  name-bytes (byte-array name-len)
+                  _ (.get (.position (.duplicate buf) (int (+ i 46))) name-bytes)
+                  entry (zip64-extra
+                          {:name (String. name-bytes
+                                          (if (bit-test flags 11)
+                                            StandardCharsets/UTF_8
+                                            StandardCharsets/ISO_8859_1))
+                           :method (case (u16 buf (+ i 10))
+                                     0 :stored
+                                     8 :deflated
+                                     nil)
+                           :encrypted? (bit-test flags 0)
+                           :dos-time (u32 buf (+ i 12))
+                           :crc (u32 buf (+ i 16))
+                           :compressed-size (u32 buf (+ i 20))
+                           :size (u32 buf (+ i 24))
+                           :local-offset (u32 buf (+ i 42))}
+                          buf
+                          (+ i 46 name-len)
+                          (+ i 46 name-len extra-len))]
+              (recur (+ i 46 name-len extra-len comment-len)
+                     (inc n)
+                     (conj! acc entry))))
+          (persistent! acc))))))
+
+(defn- data-offset
+  [^FileChannel ch {:keys [name local-offset]}]
+  (let [buf (read-at ch local-offset 30)]
+    (when-not (= 0x04034b50 (.getInt buf 0))
+      (throw (ZipException. (str "invalid LOC header for " name))))
+    (+ local-offset 30 (u16 buf 26) (u16 buf 28))))
+
+(defn copy-raw
+  "Copy the compressed data of entry (from entries) in file to out."
+  [^File file {:keys [compressed-size] :as entry} ^OutputStream out]
+  (with-open [ch (open-channel file)]
+    (let [target (Channels/newChannel out)]
+      (loop [pos (data-offset ch entry)
+             remaining (long compressed-size)]
+        (when (pos? remaining)
+          (let [n (.transferTo ch pos remaining target)]
+            (when-not (pos? n)
+              (throw (ZipException. "unexpected end of zip file")))
+            (recur (+ pos n) (- remaining n))))))))
+
+(defn- bounded-input
+  "An InputStream of at most n bytes of in."
+  ^InputStream [^InputStream in n]
+  (let [remaining (volatile! (long n))]
+    (proxy [java.io.FilterInputStream] [in]
+      (read
+        ([]
+         (let [b (byte-array 1)]
+           (if (pos? (.read ^InputStream this b 0 1))
+             (bit-and (aget b 0) 0xFF)
+             -1)))
+        ([b]
+         (.read ^InputStream this ^bytes b 0 (alength ^bytes b)))
+        ([b off len]
+         (if (pos? @remaining)
+           (let [r (.read in ^bytes b (int off) (int (min len @remaining)))]
+             (when (pos? r)
+               (vswap! remaining - r))
+             r)
+           -1))))))
+
+(defn raw-input
+  "An InputStream of the uncompressed contents of entry (from entries) in
+  file."
+  ^InputStream [^File file {:keys [method compressed-size] :as entry}]
+  (let [ch (open-channel file)]
+    (try
+      (let [in (-> (.position ch (long (data-offset ch entry)))
+                   (Channels/newInputStream)
+                   (java.io.BufferedInputStream. buffer-size)
+                   (bounded-input compressed-size))]
+        (case method
+          :stored in
+          :deflated (let [inflater (Inflater. true)]
+                      ;; InflaterInputStream only ends inflaters it made
+                      ;; itself
+                      (proxy [InflaterInputStream] [in inflater (int buffer-size)]
+                        (close []
+                          (try
+                            (let [^InflaterInputStream this this]
+                              (proxy-super close))
+                            (finally
+                              (.end inflater))))))
+          (throw (ZipException. (str "unsupported compression method for " (:name entry))))))
+      (catch Throwable t
+        (.close ch)
+        (throw t)))))
@@ -1,11 +1,17 @@
 (ns ^:no-doc juxt.pack.jib
-  (:require [clojure.tools.deps.util.dir :refer [*the-dir*]]
-            [juxt.pack.impl.lib-map :as lib-map]
+  (:require [clojure.java.io :as io]
+            [clojure.tools.deps.util.dir :refer [*the-dir* canonicalize]]
+            [juxt.pack.impl.cds :as cds]
             [juxt.pack.impl.elodin :as elodin]
-            [clojure.string :as str])
-  (:import (com.google.cloud.tools.jib.api Jib JibContainerBuilder)
-           (com.google.cloud.tools.jib.api.buildplan AbsoluteUnixPath FileEntriesLayer ModificationTimeProvider Platform)
-           (java.nio.file Paths Files LinkOption FileSystems)
+            [juxt.pack.impl.inventory :as inventory]
+            [juxt.pack.impl.jlink :as jlink]
+            [juxt.pack.impl.vfs :as vfs]
+            [clojure.string :as str]
+            [me.raynes.fs :as fs])
+  (:import (com.google.cloud.tools.jib.api Jib JibContainer JibContainerBuilder)
+           (com.google.cloud.tools.jib.api.buildplan AbsoluteUnixPath FileEntriesLayer FileEntry FilePermissions ModificationTimeProvider Platform)
+           (java.nio.file CopyOption Path Paths Files LinkOption FileSystems StandardCopyOption)
+           (java.nio.file.attribute FileAttribute)
            (com.google.cloud.tools.jib.api Containerizer
                                            DockerDaemonImage
                                            TarImage
@@ -14,9 +20,11 @@
                                            Credential
                                            CredentialRetriever)
            (com.google.cloud.tools.jib.frontend CredentialRetrieverFactory)
-           (com.google.cloud.tools.jib.event.events ProgressEvent TimerEvent)
+           (com.google.cloud.tools.jib.event.events ProgressEvent TimerEvent TimerEvent$State)
+           (com.google.cloud.tools.jib.event.progress Allocation)
            (java.util.function Consumer)
            (java.util Optional)
+           (java.util.concurrent ExecutorService)
            (java.time Instant)))
 
 (def string-array (into-array String []))
@@ -133,6 +141,77 @@
                       (CredentialRetrieverFactory/forImage (ImageReference/parse image-name) logger)
                       :credential (explicit-credentials to-registry-username to-registry-password)))))))
 
+(defn- set-caches
+  "Use base-image-cache and application-cache as Jib's layer caches, where
+  they're set.  Jib keeps base image layers in ~/.cache by default, and
+  application layers in a temporary directory."
+  [^Containerizer containerizer base-image-cache application-cache]
+  (cond-> containerizer
+    base-image-cache (.setBaseImageLayersCache (.toPath (io/file base-image-cache)))
+    application-cache (.setApplicationLayersCache (.toPath (io/file application-cache)))))
+
+(defn- make-timings
+  "Collects Jib's timer and progress events, see timings-report."
+  []
+  {:start (System/nanoTime)
+   :timers (atom {})
+   :progress (atom {})})
+
+(defn- add-timings-handlers
+  [^Containerizer containerizer {:keys [timers progress]}]
+  (-> containerizer
+      (.addEventHandler
+        TimerEvent
+        (reify Consumer
+          (accept [_ event]
+            (let [^TimerEvent event event
+                  timer (.getTimer event)]
+              (condp = (.getState event)
+                TimerEvent$State/START
+                (swap! timers assoc timer {:description (.getDescription event)
+                                           :parent (.orElse (.getParent timer) nil)
+                                           :start (System/nanoTime)})
+                TimerEvent$State/FINISHED
+                (swap! timers assoc-in [timer :nanos] (.toNanos (.getElapsed event)))
+                nil)))))
+      (.addEventHandler
+        ProgressEvent
+        (reify Consumer
+          (accept [_ event]
+            (let [^ProgressEvent event event
+                  allocation (.getAllocation event)
+                  now (System/nanoTime)]
+              (swap! progress update (.getDescription allocation)
+                     (fn [p]
+                       (-> p
+                           (update :allocations (fnil conj #{}) allocation)
+                           (update :units (fnil + 0) (.getUnits event))
+                           (update :first (fnil min now) now)
+                           (assoc :last now))))))))))
+
+(defn- timings-report
+  "Jib's timers as a tree of {:description, :nanos, :children}, in the order
+  they started, and the progress of each kind of work, by description, as
+  {:description, :allocations, :allocation-units, :units, :nanos}, where
+  :nanos is from its first progress to its last."
+  [{:keys [start timers progress]}]
+  (let [children (group-by :parent (map (fn [[timer m]] (assoc m :timer timer)) @timers))
+        node (fn node [{:keys [timer description nanos]}]
+               (cond-> {:description description
+                        :nanos nanos}
+                 (contains? children timer)
+                 (assoc :children (mapv node (sort-by :start (get children timer))))))]
+    {:timers (mapv node (sort-by :start (get children nil)))
+     :progress (->> @progress
+                    (sort-by (comp :first val))
+                    (mapv (fn [[description {:keys [allocations units first last]}]]
+                            {:description description
+                             :allocations (count allocations)
+                             :allocation-units (reduce + (map #(.getAllocationUnits ^Allocation %) allocations))
+                             :units units
+                             :nanos (- last first)})))
+     :nanos (- (System/nanoTime) start)}))
+
 (defn add-include-layers [jib-container-builder includes]
   (reduce (fn [jib-container-builder* include]
             (.addLayer jib-container-builder*
@@ -141,94 +220,240 @@
           jib-container-builder
           includes))
 
-(defn- add-lib-jar-entry
-  [builder all]
-  (let [container-path (AbsoluteUnixPath/get
-                         (str target-dir "/" (elodin/jar-name all)))]
-    {:container-path container-path
-     :builder (.addEntry builder
-                         (Paths/get (:path all) string-array)
-                         container-path)}))
-
-(defn- add-lib-dir-entry
-  [builder all]
-  (let [container-path (AbsoluteUnixPath/get (str target-dir "/" (elodin/directory-name all)))]
+(defn- file-entry
+  ^FileEntry [^Path src ^AbsoluteUnixPath dest ^ModificationTimeProvider modification-time-provider]
+  (FileEntry. src
+              dest
+              (.get FileEntriesLayer/DEFAULT_FILE_PERMISSIONS_PROVIDER src dest)
+              (.get modification-time-provider src dest)))
+
+(defn- dir-entries
+  "Entries for the files under dir, and for dir and its subdirectories, as
+  .addEntryRecursive makes them.  The inventory's scan isn't used, as it only
+  lists files, and layers should have the same digests whichever way they
+  were built."
+  [^Path dir ^AbsoluteUnixPath container-path ^ModificationTimeProvider modification-time-provider]
+  (-> (FileEntriesLayer/builder)
+      (.addEntryRecursive dir
+                          container-path
+                          FileEntriesLayer/DEFAULT_FILE_PERMISSIONS_PROVIDER
+                          modification-time-provider)
+      (.build)
+      (.getEntries)))
+
+(defn- dir-root-entries
+  "Entries for the files under dir, at container-path.  With a jar-dir, a jar
+  of them is made there instead, as the JVM can't archive classes for CDS
+  from directories which come before jars on the classpath."
+  [basis ^Path dir ^AbsoluteUnixPath container-path modification-time-provider jar-dir]
+  (if jar-dir
+    (let [name (str (subs (str container-path) (inc (count target-dir))) ".jar")
+          jar (io/file jar-dir name)
+          container-path (AbsoluteUnixPath/get (str target-dir "/" name))]
+      (vfs/write-file jar
+                      {:type :jar
+                       :reproducible true}
+                      (inventory/dir-path basis (.toFile dir)))
+      {:container-path container-path
+       :entries [(file-entry (.toPath jar)
+                             container-path
+                             FileEntriesLayer/DEFAULT_MODIFICATION_TIME_PROVIDER)]})
     {:container-path container-path
-     :builder (.addEntryRecursive builder
-                                  (Paths/get (:path all) string-array)
-                                  container-path)}))
-
-(defn- add-paths-entry
-  [builder root]
+     :entries (dir-entries dir container-path modification-time-provider)}))
+
+(defn- lib-entries
+  [basis coordinate root jar-dir]
+  (case (inventory/classify basis root)
+    :jar (let [container-path (AbsoluteUnixPath/get
+                                (str target-dir "/" (elodin/jar-name coordinate)))]
+           {:container-path container-path
+            :entries [(file-entry (Paths/get root string-array)
+                                  container-path
+                                  FileEntriesLayer/DEFAULT_MODIFICATION_TIME_PROVIDER)]})
+    :dir (dir-root-entries basis
+                           (Paths/get root string-array)
+                           (AbsoluteUnixPath/get
+                             (str target-dir "/" (elodin/directory-name coordinate)))
+                           FileEntriesLayer/DEFAULT_MODIFICATION_TIME_PROVIDER
+                           jar-dir)
+    :dne nil
+    (throw (ex-info "Cannot classify path as jar or dir" {:path root :lib (:lib coordinate)}))))
+
+(defn- paths-entries
+  [basis root jar-dir]
   (let [raw-path (Paths/get root string-array)
         src-path (.resolve (.toPath *the-dir*) raw-path)]
     (when (Files/exists src-path (into-array LinkOption []))
-      (let [container-path (AbsoluteUnixPath/get
-                             (str target-dir "/" (unique-base-path raw-path)))]
-        {:builder
-         (.addEntryRecursive builder
-                             src-path
-                             container-path
-                             FileEntriesLayer/DEFAULT_FILE_PERMISSIONS_PROVIDER
-                             timestamp-provider)
-         :container-path container-path}))))
-
-
-(defn- make-builtin-layers
-  [basis]
-  (->
-    (reduce
-      (fn [layers root]
-        (let [{:keys [path-key lib-name]} (get-in basis [:classpath root])]
-          (cond
-            path-key
-            (let [{:keys [container-path builder]} (add-paths-entry (:paths-layer layers) root)]
-              (-> layers
-                  (assoc :paths-layer builder)
+      (dir-root-entries basis
+                        src-path
+                        (AbsoluteUnixPath/get
+                          (str target-dir "/" (unique-base-path raw-path)))
+                        timestamp-provider
+                        jar-dir))))
+
+(defn- lib-group
+  "Libs with a release version never change, unlike snapshots and local and
+  git libs."
+  [coordinate]
+  (let [version (:mvn/version coordinate)]
+    (if (and version (not (str/ends-with? version "-SNAPSHOT")))
+      :release-libs
+      :snapshot-libs)))
+
+(defn- make-builtin-entries
+  "The entries of the classpath of basis, by what changes them, and the
+  container path of each root.  Directories are made into jars in jar-dir, if
+  there is one."
+  [basis jar-dir]
+  (reduce
+    (fn [acc root]
+      (let [{:keys [path-key lib-name]} (get-in basis [:classpath root])]
+        (cond
+          path-key
+          (if-let [{:keys [container-path entries]} (paths-entries basis root jar-dir)]
+            (let [{classes true resources false}
+                  (if jar-dir
+                    {true entries}
+                    (group-by #(.matches classfile-matcher (.getSourceFile ^FileEntry %)) entries))]
+              (-> acc
+                  (update :paths into entries)
+                  (update :classes into classes)
+                  (update :resources into resources)
                   (assoc-in [:container-roots root] container-path)))
+            acc)
+
+          lib-name
+          (let [coordinate (assoc (get-in basis [:libs lib-name])
+                                  :lib lib-name
+                                  :path root)
+                {:keys [container-path entries]} (lib-entries basis coordinate root jar-dir)]
+            (cond-> acc
+              container-path
+              (-> (update :libs conj {:lib lib-name
+                                      :group (lib-group coordinate)
+                                      :entries (vec entries)})
+                  (assoc-in [:container-roots root] container-path))))
+
+          :else
+          acc)))
+    {:paths []
+     :classes []
+     :resources []
+     :libs []
+     :container-roots {}}
+    (:classpath-roots basis)))
+
+(defn- make-layer
+  [^String name entries]
+  (when (seq entries)
+    (-> (FileEntriesLayer/builder)
+        (.setName name)
+        (.setEntries (vec entries))
+        (.build))))
+
+(defn- entries-size
+  [entries]
+  (reduce + (map #(Files/size (.getSourceFile ^FileEntry %)) entries)))
+
+(defn- lib-layers
+  "A layer of each lib in groups of at least lib-layer-size bytes, so that
+  they're only pushed and pulled again when they change, then one layer of
+  the rest."
+  [libs groups name lib-layer-size]
+  (let [libs (filter (comp groups :group) libs)
+        own-layer? #(and lib-layer-size
+                         (>= (entries-size (:entries %)) lib-layer-size))]
+    (concat
+      (map #(make-layer (str (:lib %)) (:entries %))
+           (filter own-layer? libs))
+      [(make-layer name (mapcat :entries (remove own-layer? libs)))])))
 
-            lib-name
-            (let [coordinate (assoc (get-in basis [:libs lib-name])
-                                    :lib lib-name
-                                    :path root)
-                  {:keys [container-path builder]}
-                  (case (lib-map/classify root)
-                    :jar (add-lib-jar-entry (:libs-layer layers) coordinate)
-                    :dir (add-lib-dir-entry (:libs-layer layers) coordinate)
-                    :dne {:builder (:libs-layer layers)}
-                    (throw (ex-info "Cannot classify path as jar or dir" {:path root :lib lib-name})))]
-              (cond-> layers
-                true
-                (assoc :libs-layer builder)
-                container-path
-                (assoc-in [:container-roots root] container-path))))))
-
-      {:paths-layer (-> (FileEntriesLayer/builder)
-                        (.setName "Paths"))
-       :libs-layer (-> (FileEntriesLayer/builder)
-                       (.setName "Libs"))
-       :container-roots {}}
-      (:classpath-roots basis))
-    (update :paths-layer (memfn build))
-    (update :libs-layer (memfn build))))
+(defn- make-builtin-layers
+  [{:keys [libs paths classes resources]} layer lib-layer-size]
+  (case layer
+    :libs (lib-layers libs #{:release-libs :snapshot-libs} "Libs" lib-layer-size)
+    :release-libs (lib-layers libs #{:release-libs} "Release libs" lib-layer-size)
+    :snapshot-libs (lib-layers libs #{:snapshot-libs} "Snapshot libs" lib-layer-size)
+    :paths [(make-layer "Paths" paths)]
+    :resources [(make-layer "Resources" resources)]
+    :classes [(make-layer "Classes" classes)]))
 
 (defn- set-layers
   [^JibContainerBuilder jib-container-builder layers]
   (.setFileEntriesLayers jib-container-builder (into-array FileEntriesLayer layers)))
 
-(defn- make-entrypoint [basis container-roots]
-  (concat ["java"
-           ;; Early in case users override in :jvm-opts
-           "-Dclojure.main.report=stderr"
-           "-Dfile.encoding=UTF-8"]
-          (-> basis :argmap :jvm-opts)
-          ["-cp"
-           (str/join ":"
-                     (map
-                       #(str (get container-roots %))
-                       (:classpath-roots basis)))
-           "clojure.main"]
-          (-> basis :argmap :main-opts)))
+(def ^:private cds-archive "app.jsa")
+
+(def ^:private runtime-dir "/opt/java")
+
+(defn- make-entrypoint [basis container-roots cds jlink]
+  (let [classpath (keep #(some-> (get container-roots %) str)
+                        (:classpath-roots basis))
+        main-opts (-> basis :argmap :main-opts)
+        java (if jlink (str runtime-dir "/bin/java") "java")]
+    (if cds
+      ;; Relative to the working directory, as when the archive was trained
+      (concat [java (str "-XX:SharedArchiveFile=" cds-archive)]
+              (cds/java-args basis
+                             (map #(subs % (inc (count target-dir))) classpath)
+                             main-opts
+                             ":"))
+      (cons java (cds/java-args basis classpath main-opts ":")))))
+
+(defn- stage-entries
+  "Copy entries to dir, laid out as they are under target-dir, with the
+  modification time they have in the image."
+  [entries dir]
+  (doseq [^FileEntry entry entries
+          :let [out (io/file dir (subs (str (.getExtractionPath entry)) (inc (count target-dir))))]]
+    (io/make-parents out)
+    (Files/copy (.getSourceFile entry)
+                (.toPath out)
+                ^"[Ljava.nio.file.CopyOption;" (into-array CopyOption [StandardCopyOption/REPLACE_EXISTING]))
+    (.setLastModified out (.toEpochMilli (.getModificationTime entry)))))
+
+(defn- make-cds-layer
+  "Train a CDS archive on a copy of the image's classpath in dir, and return a
+  layer of it."
+  [basis {:keys [libs paths container-roots]} cds dir]
+  (let [app-dir (io/file dir "app")
+        _ (stage-entries (concat (mapcat :entries libs) paths) app-dir)
+        archive (cds/train basis
+                           (keep #(some-> (get container-roots %) str (subs (inc (count target-dir))))
+                                 (:classpath-roots basis))
+                           (io/file dir cds-archive)
+                           app-dir
+                           cds)]
+    (make-layer "CDS archive"
+                [(file-entry (.toPath ^java.io.File archive)
+                             (AbsoluteUnixPath/get (str target-dir "/" cds-archive))
+                             FileEntriesLayer/DEFAULT_MODIFICATION_TIME_PROVIDER)])))
+
+(defn- make-runtime
+  "Make a runtime in dir with jlink, of the modules jdeps finds the classpath
+  of basis uses, or (:modules jlink), and (:add-modules jlink)."
+  [basis jlink cds dir]
+  (let [{:keys [modules add-modules]} (when (map? jlink) jlink)
+        modules (or modules
+                    (jlink/module-deps
+                      (keep #(let [f (canonicalize (io/file %))]
+                               (when (.exists f) f))
+                            (:classpath-roots basis))))]
+    (jlink/runtime (io/file dir "java") (distinct (concat modules add-modules)) cds)))
+
+(defn- make-runtime-layer
+  [^java.io.File runtime]
+  (let [root (AbsoluteUnixPath/get runtime-dir)]
+    (make-layer "Java runtime"
+                (map (fn [{:keys [path ^java.io.File file]}]
+                       (let [src (.toPath file)]
+                         ;; Keep bin/java and friends executable
+                         (FileEntry. src
+                                     (.resolve root ^String (str/join "/" path))
+                                     (FilePermissions/fromPosixFilePermissions
+                                       (Files/getPosixFilePermissions src (make-array LinkOption 0)))
+                                     FileEntriesLayer/DEFAULT_MODIFICATION_TIME)))
+                     (vfs/dir-path runtime)))))
 
 (defn jib
   [{:keys [basis
@@ -247,49 +472,104 @@
 
            volumes
            layers
+           lib-layer-size
            platforms
 
            entrypoint
+           cds
+           jlink
+
+           executor
+           base-image-cache
+           application-cache
 
            creation-time
            user]
-    :or {base-image "gcr.io/distroless/java:11"
-         creation-time (java.time.Instant/now)
+    :or {creation-time (java.time.Instant/now)
          layers [:libs :paths]
          env {}}}]
+  (when (and cds (not jlink) (not (and base-image (:java cds))))
+    ;; The default base image's java is not the local one
+    (throw (ex-info (str ":cds needs :jlink, or a :base-image and the :java of"
+                         " the same build in :cds, as an archive only works"
+                         " with the JVM which made it")
+                    {:cds cds :base-image base-image})))
+  (when jlink
+    ;; Jib's default platform
+    (jlink/check-platforms (or (seq platforms) [:linux/amd64])))
   (let [tar-file (if (string? tar-file)
                    (Paths/get tar-file string-array)
                    tar-file)
         logger (make-logger)
-        base-image-with-creds (make-base-image base-image from-registry-username from-registry-password logger)
-        {:keys [libs-layer paths-layer container-roots]} (make-builtin-layers basis)]
-    (-> (Jib/from base-image-with-creds)
-        (add-labels labels)
-        (.setUser user)
-        (.setCreationTime creation-time)
-        (set-layers
-          (map
-            (fn [layer]
-              (cond
-                (= :libs layer) libs-layer
-                (= :paths layer) paths-layer
-                :else layer))
-            layers))
-        ;; TODO: maybe parameterize target-dir
-        (.setWorkingDirectory (AbsoluteUnixPath/get target-dir))
-        (.setEnvironment env)
-        (.setVolumes (into #{} (map #(AbsoluteUnixPath/get %)) volumes) )
-        (.setEntrypoint (into-array String (or entrypoint (make-entrypoint basis container-roots))))
-        (cond-> (seq platforms)
-          (.setPlatforms
-           (into #{} (map #(Platform. (name %) (namespace %)) platforms))))
-        (.containerize
-          (add-additional-tags
-            (make-containerizer
-              image-type
-              image-name
-              tar-file
-              to-registry-username
-              to-registry-password
-              logger)
-            tags)))))
+        base-image-with-creds (make-base-image (or base-image
+                                                   (if jlink
+                                                     ;; Everything but the JRE
+                                                     "gcr.io/distroless/java-base-debian12"
+                                                     "gcr.io/distroless/java:11"))
+                                               from-registry-username
+                                               from-registry-password
+                                               logger)
+        timings (make-timings)
+        work-dir (when (or cds jlink)
+                   (.toFile (Files/createTempDirectory "pack-jib" (make-array FileAttribute 0))))]
+    (try
+      (let [{:keys [container-roots] :as builtin} (make-builtin-entries
+                                                    basis
+                                                    (when cds (io/file work-dir "jars")))
+            runtime (when jlink
+                      (make-runtime basis jlink cds work-dir))]
+        (-> (Jib/from base-image-with-creds)
+            (add-labels labels)
+            (.setUser user)
+            (.setCreationTime creation-time)
+            (set-layers
+              (keep identity
+                    (concat
+                      ;; First, as it changes least
+                      (when runtime
+                        [(make-runtime-layer runtime)])
+                      (mapcat
+                        (fn [layer]
+                          (if (keyword? layer)
+                            (make-builtin-layers builtin layer lib-layer-size)
+                            [layer]))
+                        layers)
+                      ;; Last, as it changes with any of the others
+                      (when cds
+                        [(make-cds-layer basis
+                                         builtin
+                                         (merge
+                                           ;; An archive only works with the JVM which made it
+                                           (when runtime
+                                             {:java (str (io/file runtime "bin" "java"))})
+                                           (when (map? cds) cds))
+                                         work-dir)]))))
+            ;; TODO: maybe parameterize target-dir
+            (.setWorkingDirectory (AbsoluteUnixPath/get target-dir))
+            (.setEnvironment env)
+            (.setVolumes (into #{} (map #(AbsoluteUnixPath/get %)) volumes) )
+            (.setEntrypoint (into-array String (or entrypoint (make-entrypoint basis container-roots cds jlink))))
+            (cond-> (seq platforms)
+              (.setPlatforms
+               (into #{} (map #(Platform. (name %) (namespace %)) platforms))))
+            (.containerize
+              (cond-> (-> (make-containerizer
+                            image-type
+                            image-name
+                            tar-file
+                            to-registry-username
+                            to-registry-password
+                            logger)
+                          (add-additional-tags tags)
+                          (set-caches base-image-cache application-cache)
+                          (add-timings-handlers timings))
+                executor
+                (.setExecutorService ^ExecutorService executor)))
+            (as-> ^JibContainer container
+              {:container container
+               :image-digest (str (.getDigest container))
+               :image-id (str (.getImageId container))
+               :tags (set (.getTags container))
+               :timings (timings-report timings)})))
+      (finally
+        (some-> work-dir fs/delete-dir)))))
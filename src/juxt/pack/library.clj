@@ -2,28 +2,28 @@
   (:require
     [clojure.tools.deps.util.dir :refer [canonicalize]]
     [clojure.java.io :as io]
+    [juxt.pack.impl.inventory :as inventory]
     [juxt.pack.impl.vfs :as vfs]))
 
 (defn write-paths
-  [basis output-path extra-paths]
+  [basis output-path extra-paths & [opts]]
   (io/make-parents (io/file output-path))
   (vfs/write-vfs
-    {:type :jar
-     :stream (io/output-stream output-path)}
+    (merge opts
+           {:type :jar
+            :stream (io/output-stream output-path)})
     (concat extra-paths
             (mapcat
-              (fn [path]
-                (vfs/files-path
-                  (file-seq (io/file path))
-                  (io/file path)))
+              #(inventory/dir-path basis %)
               (keep
                 #(when (:path-key (val %))
                    (canonicalize (io/file (key %))))
                 (:classpath basis))))))
 
 (defn library
-  [{:keys [basis path pom lib]}]
+  [{:keys [basis path pom lib] :as params}]
   (write-paths basis path
                (when pom
                  [{:path ["META-INF" "maven" (namespace lib) (name lib) "pom.xml"]
-                   :input (io/input-stream pom)}])))
+                   :file (io/file pom)}])
+               (vfs/share-open-files (select-keys params vfs/output-options))))
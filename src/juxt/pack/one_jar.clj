@@ -3,16 +3,28 @@
     [clojure.tools.deps.util.dir :refer [canonicalize]]
     [clojure.java.io :as io]
     [clojure.string :as string]
+    [juxt.pack.impl.cache :as cache]
     [juxt.pack.impl.elodin :as elodin]
-    [juxt.pack.impl.lib-map :as lib-map]
+    [juxt.pack.impl.inventory :as inventory]
     [juxt.pack.impl.vfs :as vfs]
     [me.raynes.fs :as fs])
   (:import
    [java.nio.file Files]
    java.nio.file.attribute.FileAttribute
+   java.security.MessageDigest
    java.util.Arrays
    [javax.tools Diagnostic$Kind DiagnosticCollector ToolProvider]))
 
+(def ^:private bootstrap-sources
+  #_(comment (into [] (comp (filter (memfn isFile)) (map #(string/replace % #"^src/" ""))) (file-seq (io/file "src/juxt/pack/bootstrap/onejar/src/"))))
+  ["juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/IProperties.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/JarClassLoader.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/Handler.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/OneJarURLConnection.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/OneJarFile.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/Recorder.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/Boot.java" "juxt/pack/bootstrap/onejar/src/OneJar.java"])
+
+(def ^:private bootstrap-javac-options
+  ;; The bootstrap needs Java 9 APIs (StackWalker, ModuleLayer).  Compiling
+  ;; for an explicit release keeps the classes loadable on a Java 9 runtime
+  ;; whatever JDK the build happens to run on.
+  ["--release" "9" "-Xlint:-options"])
+
 (defn- javac
   "Compile java sources. Primitive version for building a self-contained bootstrap"
   [tgt
@@ -20,7 +32,7 @@
   (.mkdirs tgt)
   (let [diag-coll (DiagnosticCollector.)
         compiler  (or (ToolProvider/getSystemJavaCompiler)
-                      (throw (Exception. "The java compiler is not working. Please make sure you use a JDK!")))]
+                      (throw (Exception. "The java compiler is not working. One-Jar compiles its bootstrap on first use, please make sure you use a JDK!")))]
     (with-open [file-mgr (.getStandardFileManager compiler diag-coll nil nil)]
       (let [opts (->> ["-d"  (.getPath tgt)]
                       (concat options)
@@ -35,8 +47,7 @@
                     javax.tools.JavaFileObject$Kind/SOURCE]
                    (getCharContent [ignoredEncodingErrors]
                      (slurp file))))
-              #_(comment (into [] (comp (filter (memfn isFile)) (map #(string/replace % #"^src/" ""))) (file-seq (io/file "src/juxt/pack/bootstrap/onejar/src/"))))
-              ["juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/IProperties.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/JarClassLoader.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/Handler.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/OneJarURLConnection.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/OneJarFile.java" "juxt/pack/bootstrap/onejar/src/com/simontuffs/onejar/Boot.java" "juxt/pack/bootstrap/onejar/src/OneJar.java"])]
+              bootstrap-sources)]
         (-> compiler
             (.getTask *err* file-mgr diag-coll opts nil bootstrap)
             (.call))
@@ -58,7 +69,7 @@
             (throw (Exception. "java compiler error"))))))))
 
 (defn- deleting-tmp-dir
-  [prefix]
+  ^java.nio.file.Path [prefix]
   (let [tmp-path (Files/createTempDirectory prefix
                                             (into-array FileAttribute []))]
     (.addShutdownHook (Runtime/getRuntime)
@@ -67,27 +78,49 @@
                           (fs/delete-dir (.toFile tmp-path)))))
     tmp-path))
 
-(defn- create-bootstrap
+(defn- bootstrap-key
+  "Hash of everything that goes into the compiled bootstrap: the javac
+  options and the content of each source."
   []
-  (let [bootstrap-p (deleting-tmp-dir "pack-bootstrap")]
-    (javac (.toFile bootstrap-p)
-           nil)
-    bootstrap-p))
+  (let [md (MessageDigest/getInstance "SHA-256")]
+    (doseq [^String option bootstrap-javac-options]
+      (.update md (.getBytes option "UTF-8"))
+      (.update md (byte 0)))
+    (doseq [^String source bootstrap-sources]
+      (.update md (.getBytes source "UTF-8"))
+      (.update md (byte 0))
+      (with-open [in (io/input-stream (io/resource source))]
+        (.update md (.readAllBytes in))))
+    (format "%064x" (BigInteger. 1 (.digest md)))))
+
+(defn- create-bootstrap
+  ^java.nio.file.Path []
+  (try
+    (cache/cached "bootstrap" (bootstrap-key)
+                  #(javac (.toFile ^java.nio.file.Path %) bootstrap-javac-options))
+    ;; A read-only or missing home shouldn't fail the build, fall back to
+    ;; compiling into a throwaway directory.
+    (catch java.io.IOException _
+      (let [bootstrap-p (deleting-tmp-dir "pack-bootstrap")]
+        (javac (.toFile bootstrap-p)
+               bootstrap-javac-options)
+        bootstrap-p))))
 
 (defn- write-jar
-  [basis jar-location main & [args]]
+  [basis jar-location opts main & [args]]
   (let [bootstrap-p (create-bootstrap)]
-    (vfs/write-vfs
-      {:stream (io/output-stream jar-location)
-       :type :jar
-       :manifest {:main "com.simontuffs.onejar.Boot"
-                  :ext-attrs
-                  (concat
-                    [["One-Jar-Main-Class" main]
-                     ;; See https://dev.clojure.org/jira/browse/CLJ-971
-                     ["One-Jar-URL-Factory" "com.simontuffs.onejar.JarClassLoader$OneJarURLFactory"]]
-                    (when args
-                      [["One-Jar-Main-Args" args]]))}}
+    (vfs/write-file
+      jar-location
+      (merge opts
+             {:type :jar
+              :manifest {:main "com.simontuffs.onejar.Boot"
+                         :ext-attrs
+                         (concat
+                           [["One-Jar-Main-Class" main]
+                            ;; See https://dev.clojure.org/jira/browse/CLJ-971
+                            ["One-Jar-URL-Factory" "com.simontuffs.onejar.JarClassLoader$OneJarURLFactory"]]
+                           (when args
+                             [["One-Jar-Main-Args" args]]))}})
 
       (concat
         (keep
@@ -96,33 +129,33 @@
               (cond
                 path-key
                 (let [src-root (canonicalize (io/file root))]
-                  {:path ["lib" (str "project-" root ".jar")]
-                   :paths (vfs/files-path (file-seq src-root) src-root)})
+                  (assoc (inventory/dir-jar basis opts src-root)
+                         :path ["lib" (str "project-" root ".jar")]))
                 lib-name
                 (let [coordinate (assoc (get-in basis [:libs lib-name])
                                         :lib lib-name
                                         :path root)]
-                  (case (lib-map/classify root)
-                    :jar {:input (io/input-stream root)
+                  (case (inventory/classify basis root)
+                    :jar {:file (io/file root)
                           :path ["lib" (elodin/jar-name coordinate)]}
-                    :dir {:paths (vfs/files-path (file-seq (io/file root)) (io/file root))
-                          :path ["lib" (format "%s.jar" (elodin/directory-name coordinate))]}
+                    :dir (assoc (inventory/dir-jar basis opts root)
+                                :path ["lib" (format "%s.jar" (elodin/directory-name coordinate))])
                     :dne nil
                     (throw (ex-info "Cannot classify path as jar or dir" {:path root :lib lib-name})))))))
           (:classpath-roots basis))
 
-        [{:path [".version"], :input (io/input-stream (io/resource "juxt/pack/bootstrap/onejar/resources/.version"))} {:path ["doc" "one-jar-license.txt"], :input (io/input-stream (io/resource "juxt/pack/bootstrap/onejar/resources/doc/one-jar-license.txt"))}]
-        (let [root (.toFile bootstrap-p)]
-          (vfs/files-path
-            (filter #(.endsWith (.getName %) ".class") (file-seq root))
-            root))))))
+        [{:path [".version"], :input #(io/input-stream (io/resource "juxt/pack/bootstrap/onejar/resources/.version"))} {:path ["doc" "one-jar-license.txt"], :input #(io/input-stream (io/resource "juxt/pack/bootstrap/onejar/resources/doc/one-jar-license.txt"))}]
+        (filter #(.endsWith ^String (last (:path %)) ".class")
+                (vfs/dir-path (.toFile bootstrap-p)))))))
 
 (defn one-jar
   [{:keys [basis jar-file main-class]
-    :or {main-class "clojure.main"}}]
+    :or {main-class "clojure.main"}
+    :as params}]
   (write-jar
     basis
     jar-file
+    (vfs/share-open-files (select-keys params vfs/output-options))
     main-class
     ;; :main-opts are specified as for passing to clojure.main
     (when (= "clojure.main" main-class)
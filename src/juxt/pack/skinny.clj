@@ -3,92 +3,273 @@
     [clojure.tools.deps.util.dir :refer [canonicalize]]
     [clojure.java.io :as io]
     [clojure.string :as string]
+    [juxt.pack.impl.cds :as cds]
     [juxt.pack.impl.elodin :as elodin]
+    [juxt.pack.impl.inventory :as inventory]
     [juxt.pack.impl.lib-map :as lib-map]
-    [juxt.pack.impl.vfs :as vfs]))
+    [juxt.pack.impl.vfs :as vfs]
+    [me.raynes.fs :as fs])
+  (:import
+    [java.nio.file ClosedWatchServiceException FileSystems FileVisitResult Files LinkOption Path SimpleFileVisitor StandardWatchEventKinds WatchEvent WatchEvent$Kind WatchKey WatchService]
+    [java.nio.file.attribute BasicFileAttributes]
+    [java.util.concurrent TimeUnit]))
+
+(defn- path-roots
+  [basis]
+  (keep
+    #(when (:path-key (val %))
+       (canonicalize (io/file (key %))))
+    (:classpath basis)))
+
+(defn- path-prefix
+  "Directory of the :dir output that the files under path go in."
+  [path]
+  (string/join
+    "-"
+    (elodin/path->path-seq
+      (elodin/str->path path))))
 
 (defn write-paths
-  [basis output-path output-target]
+  [basis output-path output-target & [opts]]
   (io/make-parents (io/file output-path))
-  (let [paths (keep
-                #(when (:path-key (val %))
-                   (canonicalize (io/file (key %))))
-                (:classpath basis))]
+  (let [paths (path-roots basis)]
     (case output-target
-      :jar (vfs/write-vfs
-             {:type :jar
-              :stream (io/output-stream output-path)}
-             (mapcat
-               (fn [path]
-                 (vfs/files-path
-                   (file-seq (io/file path))
-                   (io/file path)))
-               paths))
+      :jar (vfs/write-file
+             output-path
+             (merge opts {:type :jar})
+             (mapcat #(inventory/dir-path basis %) paths))
 
       :dir (vfs/write-vfs
-             {:type :dir
-              :root output-path}
+             (merge opts
+                    {:type :dir
+                     :root output-path})
              (mapcat
                (fn [path]
                  (map
                    (fn [x]
-                     (update x :path (fn [spath]
-                                       (cons
-                                         (string/join
-                                           "-"
-                                           (elodin/path->path-seq
-                                             (elodin/str->path path)))
-                                         spath))))
-                   (vfs/files-path (file-seq (io/file path)) (io/file path))))
+                     (update x :path #(cons (path-prefix path) %)))
+                   (inventory/dir-path basis path)))
                paths)))))
 
+;; Watching
+
+(def ^:private watch-kinds
+  (into-array WatchEvent$Kind
+              [StandardWatchEventKinds/ENTRY_CREATE
+               StandardWatchEventKinds/ENTRY_DELETE
+               StandardWatchEventKinds/ENTRY_MODIFY]))
+
+(defn- register-tree
+  "Watch dir and every directory under it, remembering the path root each is
+  in.  Returns the regular files found, as they may have been created before
+  their directory was watched."
+  [^WatchService watcher watched root ^Path dir]
+  (let [files (java.util.ArrayList.)]
+    (when (Files/isDirectory dir (make-array LinkOption 0))
+      (Files/walkFileTree
+        dir
+        (proxy [SimpleFileVisitor] []
+          (preVisitDirectory [^Path d _]
+            (swap! watched assoc (.register d watcher watch-kinds) [root d])
+            FileVisitResult/CONTINUE)
+          (visitFile [^Path f ^BasicFileAttributes attrs]
+            (when (.isRegularFile attrs)
+              (.add files [root f]))
+            FileVisitResult/CONTINUE))))
+    (vec files)))
+
+(defn- take-batch
+  "Wait for changes, then keep collecting them until there have been none for
+  quiet-ms.  Returns a set of [root path] which changed, or :all if events
+  were lost."
+  [^WatchService watcher watched quiet-ms]
+  (loop [^WatchKey k (.take watcher)
+         changed #{}]
+    (if-not k
+      changed
+      (let [[root ^Path dir] (get @watched k)
+            changed (reduce
+                      (fn [changed ^WatchEvent event]
+                        (if (or (= :all changed)
+                                (= StandardWatchEventKinds/OVERFLOW (.kind event)))
+                          :all
+                          (let [path (.resolve dir ^Path (.context event))]
+                            (into (conj changed [root path])
+                                  (when (= StandardWatchEventKinds/ENTRY_CREATE (.kind event))
+                                    (register-tree watcher watched root path))))))
+                      changed
+                      (.pollEvents k))]
+        (when-not (.reset k)
+          (swap! watched dissoc k))
+        (recur (.poll watcher quiet-ms TimeUnit/MILLISECONDS) changed)))))
+
+(defn- patch-dir
+  "Copy the files in changed to the :dir output, and delete the output of
+  those which have gone."
+  [output-path changed opts]
+  (let [relative (fn [[^java.io.File root ^Path path]]
+                   (cons (path-prefix root)
+                         (elodin/path->path-seq (.relativize (.toPath root) path))))
+        {files :file gone :gone} (group-by (fn [[_ ^Path path]]
+                                             (cond
+                                               (Files/isRegularFile path (make-array LinkOption 0)) :file
+                                               (Files/exists path (make-array LinkOption 0)) :dir
+                                               :else :gone))
+                                           changed)]
+    (doseq [c gone
+            :let [out (io/file output-path (elodin/path-seq->str (relative c)))]]
+      (if (.isDirectory out)
+        (fs/delete-dir out)
+        (io/delete-file out true)))
+    (vfs/write-vfs
+      ;; Not a sync, the rest of the output is still there
+      (merge (dissoc opts :sync)
+             {:type :dir
+              :root output-path})
+      (map (fn [[_ ^Path path :as c]]
+             {:path (relative c)
+              :file (.toFile path)})
+           (sort-by (comp str second) files)))))
+
+(defn watch-paths
+  "Write :paths of basis as write-paths does, then keep output up to date as
+  files under them change, until the returned function is called.  A :dir
+  output only has the changed files copied or deleted.  A :jar is rewritten
+  incrementally, so its unchanged entries are copied as they are."
+  [basis output-path output-target & [opts]]
+  (let [opts (case output-target
+               :jar (assoc opts :incremental true)
+               :dir (assoc opts :sync true))
+        rebuild #(write-paths basis output-path output-target opts)
+        watcher (.newWatchService (FileSystems/getDefault))
+        watched (atom {})]
+    (doseq [root (path-roots basis)]
+      (register-tree watcher watched root (.toPath ^java.io.File root)))
+    (rebuild)
+    (let [^Runnable watch
+          (bound-fn []
+            (try
+              (loop []
+                (let [changed (take-batch watcher watched 50)]
+                  (try
+                    (if (or (= :all changed) (= :jar output-target))
+                      (rebuild)
+                      (patch-dir output-path changed opts))
+                    ;; Keep watching, the next change may fix it
+                    (catch Exception e
+                      (binding [*out* *err*]
+                        (println "Error updating" output-path (str e))))))
+                (recur))
+              (catch ClosedWatchServiceException _)))]
+      (doto (Thread. watch "pack-watch")
+        (.setDaemon true)
+        (.start)))
+    #(.close watcher)))
+
+(defn- immutable?
+  "Whether the files of a lib never change, so can be linked to rather than
+  copied."
+  [coordinate]
+  (boolean (or (:mvn/version coordinate) (:git/sha coordinate))))
+
 (defn write-libs
-  [{lib-map :libs} lib-dir output-target]
-  (let [root (io/file lib-dir)]
+  [{lib-map :libs :as basis} lib-dir output-target & [opts]]
+  (let [root (io/file lib-dir)
+        link? #(and (:sync opts) (immutable? %))]
     (vfs/write-vfs
-      {:type :dir
-       :root root}
+      (merge opts
+             {:type :dir
+              :root root})
       (concat
         (map
           ;; TODO: Master elodin should be in charge of this
           (fn [{:keys [path] :as all}]
             {:path [(format "%s.jar" (elodin/versioned-lib all))]
-             :input (io/input-stream path)})
+             :file (io/file path)
+             :link (link? all)})
           (lib-map/lib-jars lib-map))
         (case output-target
           :keep 
           (mapcat
             (fn [{:keys [lib path] :as all}]
               (map (fn prefix-paths [pat]
-                     (update pat :path
-                             #(cons
-                                (format "%s-%s"
-                                        (elodin/versioned-lib all)
-                                        (elodin/directory-unique all))
-                                %)))
-                   (vfs/files-path (file-seq (io/file path)) (io/file path))))
+                     (-> pat
+                         (assoc :link (link? all))
+                         (update :path
+                                 #(cons
+                                    (format "%s-%s"
+                                            (elodin/versioned-lib all)
+                                            (elodin/directory-unique all))
+                                    %))))
+                   (inventory/dir-path basis path)))
             (lib-map/lib-dirs lib-map))
           :jar
           (map
             (fn [{:keys [lib path] :as all}]
-              {:path
-               [(format "%s-%s.jar"
-                        (elodin/versioned-lib all)
-                        (elodin/directory-unique all))]
+              (assoc (inventory/dir-jar basis opts path)
+                     :path
+                     [(format "%s-%s.jar"
+                              (elodin/versioned-lib all)
+                              (elodin/directory-unique all))]))
+            (lib-map/lib-dirs lib-map)))))))
 
-               :paths (vfs/files-path (file-seq (io/file path))
-                                      (io/file path))
+(defn- output-classpath
+  "Classpath of the jar outputs of skinny, in the order of the classpath of
+  basis."
+  [basis path libs]
+  (distinct
+    (keep
+      (fn [root]
+        (let [{:keys [path-key lib-name]} (get-in basis [:classpath root])]
+          (cond
+            path-key
+            path
 
-               :type :jar})
-            (lib-map/lib-dirs lib-map)))))))
+            lib-name
+            (let [all (assoc (get-in basis [:libs lib-name])
+                             :lib lib-name
+                             :path root)]
+              (case (inventory/classify basis root)
+                :jar (str (io/file libs (format "%s.jar" (elodin/versioned-lib all))))
+                :dir (str (io/file libs (format "%s-%s.jar"
+                                                (elodin/versioned-lib all)
+                                                (elodin/directory-unique all))))
+                nil)))))
+      (:classpath-roots basis))))
+
+(defn- write-cds
+  [basis classpath {:keys [file] :as cds}]
+  (let [archive (io/file file)]
+    (io/make-parents archive)
+    ;; The JVM makes it read-only
+    (io/delete-file archive true)
+    (cds/train basis classpath archive nil cds)
+    (cds/write-args-file (str file ".args") basis classpath file)))
+
+(defn skinny-watch
+  [{:keys [basis path path-coerce] :as params}]
+  (watch-paths basis path (case path-coerce
+                            :jar :jar
+                            nil :dir)
+               (vfs/share-open-files (select-keys params vfs/output-options))))
 
 (defn skinny
-  [{:keys [basis libs lib-coerce path path-coerce]}]
-  (when path
-    (write-paths basis path (case path-coerce
-                              :jar :jar
-                              nil :dir)))
-  (when libs
-    (write-libs basis libs (case lib-coerce
-                             :jar :jar
-                             nil :keep))))
+  [{:keys [basis libs lib-coerce path path-coerce cds] :as params}]
+  (when (and cds (not (and path libs (= :jar path-coerce) (= :jar lib-coerce))))
+    ;; The JVM can't archive classes from directories before jars on the
+    ;; classpath
+    (throw (ex-info ":cds needs :path and :libs, with :path-coerce and :lib-coerce :jar"
+                    {:path path :libs libs :path-coerce path-coerce :lib-coerce lib-coerce})))
+  (let [opts (vfs/share-open-files (select-keys params vfs/output-options))]
+    (when path
+      (write-paths basis path (case path-coerce
+                                :jar :jar
+                                nil :dir)
+                   opts))
+    (when libs
+      (write-libs basis libs (case lib-coerce
+                               :jar :jar
+                               nil :keep)
+                  opts))
+    (when cds
+      (write-cds basis (output-classpath basis path libs) cds))))